@@ -1,82 +1,486 @@
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicMarkableReference;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class BirthdayPresents {
-    // Parameters that define the number of presents to be processed and the number of threads/servants 
-    // that will take care of the processing
-    public static final int NUM_PRESENTS = 500000;
-    private static final int NUM_SERVANTS = 4;
+    // Parameters that define the number of presents to be processed and the number of servants that will take care of
+    // the processing. Both can also be set from the command line (see main)
+    public static int NUM_PRESENTS = 500000;
+    public static int NUM_SERVANTS = 4;
+
+    // Defines the executors that the servants can be run on: a fixed pool with one platform thread per servant, a ForkJoinPool with
+    // one thread per core that all the servants share, or one virtual thread per servant (which needs Java 21 or newer). The last two
+    // make it possible to run many more servants than there are cores
+    public enum ServantExecutor {
+        PLATFORM_THREADS,
+        FORK_JOIN_POOL,
+        VIRTUAL_THREADS
+    }
+
+    // Decides which executor the servants are run on
+    public static ServantExecutor SERVANT_EXECUTOR = ServantExecutor.PLATFORM_THREADS;
+
+    // Relative weights of the add present, write thank you card, and search present tasks that servants randomly choose between
+    public static int[] TASK_MIX = {1, 1, 1};
 
     // Boolean flag that decides whether or not each servant's task should be printed out during the program's execution
     public static boolean PRINT_STEPS = false;
 
-    public static void main(String[] args) {
-        long startTime, endTime;
-        List<Integer> presentsList;
-        BlockingQueue<Integer> presentsBag;
-        LazyLinkedList presentsChain;
-        ServantThread[] servantThreads;
+    // Number of presents a servant takes out of the unordered bag at once when adding presents to the chain. When this is more
+    // than 1, the servant sorts the presents it took and merges them into the chain as one sorted run, instead of searching the
+    // chain from the head for every single present
+    public static int INSERT_BATCH_SIZE = 1;
+
+    // Number of presents a servant tries to write thank you cards for at once. When this is more than 1, the servant removes
+    // a whole run of presents from the front of the chain at once instead of competing for the head of the chain for every present
+    public static int REMOVE_BATCH_SIZE = 1;
+
+    // Boolean flag that decides whether or not the chain keeps an atomic bitset of which presents it currently holds,
+    // so that searching for a present is a single bit lookup instead of a traversal of the chain
+    public static boolean USE_MEMBERSHIP_INDEX = false;
+
+    // Boolean flag that decides whether or not servants write thank you cards for any one of the first RELAXATION_BOUND presents
+    // in the chain instead of always the very first present, which spreads the servants out instead of all fighting over the head
+    public static boolean RELAXED_REMOVALS = false;
+
+    // Maximum number of presents a relaxed removal may skip over. If this is 0, then p * log2(p) is used for p servants
+    public static int RELAXATION_BOUND = 0;
+
+    // Boolean flag that decides whether or not hot path metrics (task latencies, validation retries, lock waits, and
+    // traversal lengths) are collected and printed out at the end of the program's execution
+    public static boolean COLLECT_METRICS = false;
+
+    // Name of the CSV file that the collected metrics are also written to (null to only print them out)
+    public static final String METRICS_CSV_FILE = null;
+
+    // Name of the file that a binary journal of every servant's tasks is written to (null to not keep a journal). Servants only
+    // append compact events to their own ring buffer and a background thread writes them out, so the journal can stay on under
+    // full load. Use "java JournalDecoder <file>" to print the history and check that it is linearizable
+    public static String JOURNAL_FILE = null;
+
+    // Defines the concurrent data structures that can be used to build the ordered chain of presents
+    public enum ChainType {
+        LAZY_LIST,
+        LAZY_SKIP_LIST,
+        LOCK_FREE_LIST,
+        ARRAY_LAZY_LIST,
+        PARTITIONED_LAZY_LIST
+    }
+
+    // Decides which implementation of the ordered chain of presents the servants will construct
+    public static ChainType CHAIN_TYPE = ChainType.LAZY_LIST;
+
+    // How often (in milliseconds) an auditor takes a snapshot of the whole chain while the servants are working, and checks that it
+    // is in order (0 to not audit the chain). Only the lazy list and the partitioned lazy list can take snapshots, and they only
+    // keep the versions that snapshots need while the chain is being audited
+    public static long AUDIT_MILLIS = 0;
+
+    // Number of lazy linked lists that the presents' tag numbers are split over when CHAIN_TYPE is PARTITIONED_LAZY_LIST
+    public static final int NUM_PARTITIONS = 16;
+
+    // Creates a new empty ordered chain of presents of the implementation type passed in
+    public static PresentsChain createPresentsChain(final ChainType chainType) {
+        return createPresentsChain(chainType, NUM_PRESENTS);
+    }
+
+    // Same as above, except that the chain is sized for presents with tag numbers from 1 to maxTagNum instead of 1 to NUM_PRESENTS
+    public static PresentsChain createPresentsChain(final ChainType chainType, final int maxTagNum) {
+        PresentsMembershipIndex membershipIndex = (USE_MEMBERSHIP_INDEX) ? new PresentsMembershipIndex(maxTagNum) : null;
+
+        // Lazy lists only keep versions of their nodes' next pointers for snapshots when the chain is going to be audited
+        SnapshotClock snapshotClock = (AUDIT_MILLIS > 0) ? new SnapshotClock() : null;
+
+        if (chainType == ChainType.LAZY_SKIP_LIST) {
+            return new LazySkipList(membershipIndex);
+        }
+        else if (chainType == ChainType.LOCK_FREE_LIST) {
+            return new LockFreeLinkedList(membershipIndex);
+        }
+        else if (chainType == ChainType.ARRAY_LAZY_LIST) {
+            return new ArrayLazyList(maxTagNum, membershipIndex);
+        }
+        else if (chainType == ChainType.PARTITIONED_LAZY_LIST) {
+            // Every partition shares the same membership index, since each tag number only ever goes into one of them
+            // Every partition shares the same snapshot clock too, so that they can all be snapshotted at the same time
+            LazyLinkedList[] partitions = new LazyLinkedList[NUM_PARTITIONS];
+            for (int i = 0; i < NUM_PARTITIONS; i++) {
+                partitions[i] = new LazyLinkedList(membershipIndex, snapshotClock);
+            }
+            return new PartitionedPresentsChain(partitions, maxTagNum, snapshotClock);
+        }
+
+        return new LazyLinkedList(membershipIndex, snapshotClock);
+    }
+
+    // Returns the relaxation bound that relaxed removals use for the number of servants passed in: RELAXATION_BOUND if it is set,
+    // and the default bound otherwise
+    public static int getRelaxationBound(final int numServants) {
+        return (RELAXATION_BOUND > 0) ? RELAXATION_BOUND : defaultRelaxationBound(numServants);
+    }
 
-        // Initialize all objects needed for the problem
-        presentsList = new ArrayList<>();
-        presentsBag = new ArrayBlockingQueue<>(NUM_PRESENTS);
-        presentsChain = new LazyLinkedList();
-        servantThreads = new ServantThread[NUM_SERVANTS];
+    // Returns the default relaxation bound of p * log2(p) for p servants (at least 1)
+    public static int defaultRelaxationBound(final int numServants) {
+        int log2Servants = 32 - Integer.numberOfLeadingZeros(numServants - 1);
+        return Math.max(1, numServants * log2Servants);
+    }
+
+    // Sets the parameters above from the command line arguments, which are given as option=value (for example "servants=1000
+    // presents=100000 chain=LAZY_SKIP_LIST executor=FORK_JOIN_POOL mix=1/1/2 insertBatch=16 removeBatch=16 index=true").
+    // Options that are not given keep their default values
+    private static void parseArgs(final String[] args) {
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            String option = (separator == -1) ? arg : arg.substring(0, separator);
+            String value = arg.substring(separator + 1);
 
-        // Create a sorted list of all the present's tag numbers
-        for (int i = 1; i <= NUM_PRESENTS; i++) {
-            presentsList.add(i);
+            if (option.equals("servants")) {
+                NUM_SERVANTS = Integer.parseInt(value);
+            }
+            else if (option.equals("presents")) {
+                NUM_PRESENTS = Integer.parseInt(value);
+            }
+            else if (option.equals("chain")) {
+                CHAIN_TYPE = ChainType.valueOf(value);
+            }
+            else if (option.equals("executor")) {
+                SERVANT_EXECUTOR = parseServantExecutor(value);
+            }
+            else if (option.equals("mix")) {
+                TASK_MIX = parseTaskMix(value);
+            }
+            else if (option.equals("audit")) {
+                AUDIT_MILLIS = Long.parseLong(value);
+            }
+            else if (option.equals("insertBatch")) {
+                INSERT_BATCH_SIZE = Integer.parseInt(value);
+            }
+            else if (option.equals("removeBatch")) {
+                REMOVE_BATCH_SIZE = Integer.parseInt(value);
+            }
+            else if (option.equals("index")) {
+                USE_MEMBERSHIP_INDEX = parseFlag(option, value);
+            }
+            else if (option.equals("relaxed")) {
+                RELAXED_REMOVALS = parseFlag(option, value);
+            }
+            else if (option.equals("relaxationBound")) {
+                RELAXATION_BOUND = Integer.parseInt(value);
+            }
+            else if (option.equals("metrics")) {
+                COLLECT_METRICS = parseFlag(option, value);
+            }
+            else if (option.equals("journal")) {
+                JOURNAL_FILE = value.isEmpty() ? null : value;
+            }
+            else {
+                throw new IllegalArgumentException("Unknown option: " + arg + " (options are servants, presents, chain, executor, mix, audit, "
+                    + "insertBatch, removeBatch, index, relaxed, relaxationBound, metrics, and journal)");
+            }
         }
 
-        // Shuffle the list of present tag numbers to simulate the unordered bag of presents
-        Collections.shuffle(presentsList);
+        if (NUM_SERVANTS < 1 || NUM_PRESENTS < 1) {
+            throw new IllegalArgumentException("There must be at least 1 servant and 1 present");
+        }
+        checkBatchesAndRelaxation();
+    }
 
-        // Redistribute this unordered list of tag numbers into a thread-safe queue
-        for (int i = 0; i < NUM_PRESENTS; i++) {
-            presentsBag.offer(presentsList.get(i));
+    // Makes sure that the batch sizes and the relaxation bound can be used by the servants
+    public static void checkBatchesAndRelaxation() {
+        if (INSERT_BATCH_SIZE < 1 || REMOVE_BATCH_SIZE < 1 || RELAXATION_BOUND < 0) {
+            throw new IllegalArgumentException("Batch sizes must be at least 1 and the relaxation bound cannot be negative");
         }
+    }
 
-        servantThreads = new ServantThread[NUM_SERVANTS];
+    // Parses the value of an on/off option, which must be either "true" or "false" so that a typo is not silently read as false
+    public static boolean parseFlag(final String option, final String value) {
+        if (!value.equals("true") && !value.equals("false")) {
+            throw new IllegalArgumentException("The " + option + " option must be true or false: " + value);
+        }
+        return value.equals("true");
+    }
 
-        // Initialize all servant threads
-        for (int i = 0; i < NUM_SERVANTS; i++) {
-            servantThreads[i] = new ServantThread(i + 1, presentsBag, presentsChain);
+    // Parses a task mix given as the add/write/search weights separated by slashes (for example "1/1/1")
+    public static int[] parseTaskMix(final String mix) {
+        String[] parts = mix.split("/");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Task mix must be three weights separated by slashes: " + mix);
         }
 
-        // Start each servant thread
-        for (int i = 0; i < NUM_SERVANTS; i++) {
-            servantThreads[i].start();
+        int[] weights = {Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2])};
+
+        // Servants could never finish if they never added presents to the chain or never wrote thank you cards for them
+        if (weights[0] <= 0 || weights[1] <= 0 || weights[2] < 0) {
+            throw new IllegalArgumentException("Task mix needs positive add and write weights and a non-negative search weight: " + mix);
         }
 
-        startTime = System.currentTimeMillis();
+        return weights;
+    }
+
+    // Parses the name of a servant executor, rejecting virtual threads up front when this Java version does not have them (they
+    // need Java 21 or newer) instead of failing once the servants are about to run
+    public static ServantExecutor parseServantExecutor(final String name) {
+        ServantExecutor servantExecutor = ServantExecutor.valueOf(name);
+        if (servantExecutor == ServantExecutor.VIRTUAL_THREADS && !supportsVirtualThreads()) {
+            throw new IllegalArgumentException("The VIRTUAL_THREADS executor needs Java 21 or newer, but this is Java " + Runtime.version().feature()
+                + " (use PLATFORM_THREADS or FORK_JOIN_POOL instead)");
+        }
+        return servantExecutor;
+    }
 
-        // Join all servant threads so that main thread waits until all servants finish processing all the presents
+    private static boolean supportsVirtualThreads() {
         try {
-            for (int i = 0; i < NUM_SERVANTS; i++) {
-                servantThreads[i].join();
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        }
+        catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    // Creates the executor that the servants will be run on. Every servant must be able to run at the same time on the platform
+    // and virtual thread executors, while the ForkJoinPool only runs as many servants at a time as there are cores
+    private static ExecutorService createServantExecutor(final ServantExecutor servantExecutor, final int numServants) {
+        if (servantExecutor == ServantExecutor.FORK_JOIN_POOL) {
+            return new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        else if (servantExecutor == ServantExecutor.VIRTUAL_THREADS) {
+            // Looked up reflectively so that the program still compiles and runs on Java versions without virtual threads
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            }
+            catch (ReflectiveOperationException e) {
+                throw new UnsupportedOperationException("Virtual threads are not available in Java " + Runtime.version().feature(), e);
+            }
+        }
+
+        return Executors.newFixedThreadPool(numServants);
+    }
+
+    // Returns how many nanoseconds of CPU time the whole process has used so far, or -1 if the JVM cannot measure it
+    private static long getProcessCpuNanos() {
+        OperatingSystemMXBean operatingSystem = ManagementFactory.getOperatingSystemMXBean();
+        if (operatingSystem instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) operatingSystem).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    public static void main(String[] args) {
+        long elapsedNanos, startCpuNanos;
+        RelaxedRemovalStats relaxedRemovalStats = null;
+        EventJournal eventJournal = null;
+
+        parseArgs(args);
+
+        if (RELAXED_REMOVALS) {
+            relaxedRemovalStats = new RelaxedRemovalStats(getRelaxationBound(NUM_SERVANTS));
+        }
+
+        if (JOURNAL_FILE != null) {
+            try {
+                eventJournal = new EventJournal(JOURNAL_FILE, NUM_SERVANTS, NUM_PRESENTS, RELAXED_REMOVALS);
             }
+            catch (IOException e) {
+                System.out.println("Error opening journal " + JOURNAL_FILE + ": " + e.toString());
+                return;
+            }
+        }
+
+        startCpuNanos = getProcessCpuNanos();
+
+        try {
+            elapsedNanos = processAllPresents(CHAIN_TYPE, NUM_SERVANTS, relaxedRemovalStats, eventJournal);
         }
         catch (InterruptedException e) {
             System.out.println("Error joining thread: " + e.toString());
             return;
         }
 
-        endTime = System.currentTimeMillis();
+        // Wait for the journal's writer to write out every servant's remaining events
+        if (eventJournal != null) {
+            try {
+                eventJournal.close();
+            }
+            catch (IOException | InterruptedException e) {
+                System.out.println("Error writing journal " + JOURNAL_FILE + ": " + e.toString());
+            }
+        }
 
         // All the presents have been processed, so print out how long it took to write thank you cards for all these presents
-        System.out.println("Finished writing thank you cards for all " + NUM_PRESENTS + " presents in " + (endTime - startTime) + "ms!");
+        System.out.println("Finished writing thank you cards for all " + NUM_PRESENTS + " presents in " + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + "ms!");
+
+        // If removals were relaxed, print out how far the removals strayed from the strict order of the chain
+        if (relaxedRemovalStats != null) {
+            relaxedRemovalStats.printReport();
+        }
+
+        // If metrics were collected, merge every servant's metrics together and print them out
+        if (COLLECT_METRICS) {
+            ServantMetrics metrics = ServantMetrics.mergeAll();
+            metrics.printReport();
+
+            // CPU time shows how much of the servants' time went into spinning instead of useful work
+            if (startCpuNanos != -1) {
+                long cpuNanos = getProcessCpuNanos() - startCpuNanos;
+                System.out.printf("    CPU time: %dms (%.2f cores busy on average)%n", TimeUnit.NANOSECONDS.toMillis(cpuNanos),
+                    (double) cpuNanos / elapsedNanos);
+            }
+
+            if (METRICS_CSV_FILE != null) {
+                try {
+                    metrics.writeCsv(METRICS_CSV_FILE);
+                }
+                catch (IOException e) {
+                    System.out.println("Error writing metrics to " + METRICS_CSV_FILE + ": " + e.toString());
+                }
+            }
+        }
+    }
+
+    // Runs the whole birthday presents workload once: fills a new unordered bag with all the presents, then has the
+    // servants build and deconstruct a new chain of the given type until every present has a thank you card written for it.
+    // Returns how many nanoseconds it took the servants to process all the presents
+    public static long processAllPresents(final ChainType chainType, final int numServants) throws InterruptedException {
+        return processAllPresents(chainType, numServants, null, null);
+    }
+
+    // Same as above, except that if relaxed removal stats are passed in, the servants use relaxed removals within their
+    // relaxation bound and record how far each removal strayed from the front of the chain
+    public static long processAllPresents(final ChainType chainType, final int numServants, final RelaxedRemovalStats relaxedRemovalStats)
+            throws InterruptedException {
+        return processAllPresents(chainType, numServants, relaxedRemovalStats, null);
+    }
+
+    // Same as above, except that if an event journal is passed in, every servant appends an event for each of its tasks to it
+    public static long processAllPresents(final ChainType chainType, final int numServants, final RelaxedRemovalStats relaxedRemovalStats,
+            final EventJournal eventJournal) throws InterruptedException {
+        long startTime, endTime;
+        PresentsBag presentsBag;
+        PresentsChain presentsChain;
+        WorkTracker workTracker;
+        Servant[] servants;
+        Future<?>[] servantResults;
+        ExecutorService executor;
+        ChainAuditor auditor = null;
+
+        // Only the metrics of this run are merged at the end of it, even when the presents are processed many times in one JVM
+        if (COLLECT_METRICS) {
+            ServantMetrics.startRun();
+        }
+
+        // Initialize all objects needed for the problem. The unordered bag of presents is split into one shard per servant
+        presentsBag = new PresentsBag(NUM_PRESENTS, numServants);
+        presentsChain = createPresentsChain(chainType);
+        if (AUDIT_MILLIS > 0 && !(presentsChain instanceof SnapshotPresentsChain)) {
+            throw new IllegalArgumentException("The " + chainType + " chain cannot take snapshots, so it cannot be audited");
+        }
+        workTracker = new WorkTracker(NUM_PRESENTS);
+        servants = new Servant[numServants];
+        servantResults = new Future<?>[numServants];
+
+        // Initialize all servants
+        for (int i = 0; i < numServants; i++) {
+            servants[i] = new Servant(i + 1, presentsBag, presentsChain, workTracker, relaxedRemovalStats,
+                (eventJournal != null) ? eventJournal.getRing(i + 1) : null);
+        }
+
+        executor = createServantExecutor(SERVANT_EXECUTOR, numServants);
+        startTime = System.nanoTime();
+
+        if (AUDIT_MILLIS > 0) {
+            auditor = new ChainAuditor((SnapshotPresentsChain) presentsChain, AUDIT_MILLIS);
+            auditor.start();
+        }
+
+        try {
+            // Submit each servant to the executor
+            for (int i = 0; i < numServants; i++) {
+                servantResults[i] = executor.submit(servants[i]);
+            }
+
+            // Wait for every servant so that main thread waits until all servants finish processing all the presents
+            for (int i = 0; i < numServants; i++) {
+                servantResults[i].get();
+            }
+        }
+        catch (ExecutionException e) {
+            throw new IllegalStateException("Servant failed while processing the presents", e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        endTime = System.nanoTime();
+
+        if (auditor != null) {
+            auditor.finish();
+            auditor.printReport();
+        }
+
+        return endTime - startTime;
+    }
+
+    // Runs the whole workload once like above, with relaxed removals if RELAXED_REMOVALS is turned on and with every servant's
+    // tasks journaled to the file passed in (null to not keep a journal). Only the time the servants took is returned, so writing
+    // out the rest of the journal afterwards is not counted
+    public static long processAllPresents(final ChainType chainType, final int numServants, final String journalFile)
+            throws InterruptedException, IOException {
+        RelaxedRemovalStats relaxedRemovalStats = (RELAXED_REMOVALS) ? new RelaxedRemovalStats(getRelaxationBound(numServants)) : null;
+        EventJournal eventJournal = (journalFile != null) ? new EventJournal(journalFile, numServants, NUM_PRESENTS, RELAXED_REMOVALS) : null;
+
+        try {
+            return processAllPresents(chainType, numServants, relaxedRemovalStats, eventJournal);
+        }
+        finally {
+            if (eventJournal != null) {
+                eventJournal.close();
+            }
+        }
     }
 }
 
-class ServantThread extends Thread {
+// Each servant runs as a task on the executor chosen by SERVANT_EXECUTOR instead of being its own thread, so that there can be many
+// more servants than there are cores. Servants never block on anything other than the chain's locks, so they also never pin the
+// carrier thread of a virtual thread while waiting.
+class Servant implements Runnable {
     // Defines the 3 tasks that the servants can randomly choose between
-    private enum ServantTask {
+    enum ServantTask {
         ADD_PRESENT_TO_CHAIN,
         WRITE_THANK_YOU_CARD,
         SEARCH_PRESENT_IN_CHAIN
@@ -85,21 +489,49 @@ class ServantThread extends Thread {
     // Each servant is assigned a unique identifier and assigned references to the 
     // unordered bag of presents and the chain of presents that is constructed
     private int servantId;
-    private BlockingQueue<Integer> presentsBag;
-    private LazyLinkedList presentsChain;
+    private PresentsBag presentsBag;
+    private PresentsChain presentsChain;
+
+    // Shared count of the presents that still need a thank you card, which servants also park on when they have nothing to do
+    private WorkTracker workTracker;
 
-    public ServantThread(final int servantId, final BlockingQueue<Integer> presentsBag, final LazyLinkedList presentsChain) {
+    // Backoff for when the servant keeps finding nothing to do
+    private Backoff idleBackoff;
+
+    // Buffer used to hold the presents taken out of the bag when adding presents to the chain in batches
+    private int[] sortedPresentTagNums;
+
+    // Buffer used to hold the tag numbers of the presents removed from the chain when writing thank you cards in batches
+    private int[] removedPresentTagNums;
+
+    // Shared record of how far relaxed removals strayed from the front of the chain (null if removals are strict)
+    private RelaxedRemovalStats relaxedRemovalStats;
+
+    // This servant's own ring buffer in the event journal (null if no journal is being kept)
+    private EventRing eventRing;
+
+    public Servant(final int servantId, final PresentsBag presentsBag, final PresentsChain presentsChain, final WorkTracker workTracker,
+            final RelaxedRemovalStats relaxedRemovalStats, final EventRing eventRing) {
         this.servantId = servantId;
         this.presentsBag = presentsBag;
         this.presentsChain = presentsChain;
+        this.workTracker = workTracker;
+        this.idleBackoff = new Backoff();
+        this.relaxedRemovalStats = relaxedRemovalStats;
+        this.eventRing = eventRing;
+        this.sortedPresentTagNums = new int[BirthdayPresents.INSERT_BATCH_SIZE];
+        this.removedPresentTagNums = new int[BirthdayPresents.REMOVE_BATCH_SIZE];
     }
 
-    // Returns a random task that the servant can do next
+    // Returns a random task that the servant can do next, weighted by the task mix
     private ServantTask getRandomTask() {
+        int[] taskMix = BirthdayPresents.TASK_MIX;
+
         // No presents are left in the bag, so the servant can randomly choose between writing a
         // thank you card or checking if a present is currently in the chain
         if (this.presentsBag.isEmpty()) {
-            return (ThreadLocalRandom.current().nextBoolean()) ? ServantTask.WRITE_THANK_YOU_CARD : ServantTask.SEARCH_PRESENT_IN_CHAIN;
+            return (ThreadLocalRandom.current().nextInt(taskMix[1] + taskMix[2]) < taskMix[1])
+                ? ServantTask.WRITE_THANK_YOU_CARD : ServantTask.SEARCH_PRESENT_IN_CHAIN;
         }
         // No presents are currently inserted in the chain, so the only thing that the servant can do
         // right now is add a present to the chain
@@ -108,11 +540,11 @@ class ServantThread extends Thread {
         }
 
         // Otherwise, the servant can randomly choose between doing any of the three tasks
-        int randNum = ThreadLocalRandom.current().nextInt(3);
-        if (randNum == 0) {
+        int randNum = ThreadLocalRandom.current().nextInt(taskMix[0] + taskMix[1] + taskMix[2]);
+        if (randNum < taskMix[0]) {
             return ServantTask.ADD_PRESENT_TO_CHAIN;
         }
-        else if (randNum == 1) {
+        else if (randNum < taskMix[0] + taskMix[1]) {
             return ServantTask.WRITE_THANK_YOU_CARD;
         }
         else {
@@ -122,30 +554,147 @@ class ServantThread extends Thread {
 
     // Returns true if there are any more presents left that need a thank you card written
     private boolean moreWorkToDo() {
-        return !this.presentsBag.isEmpty() || !this.presentsChain.isEmpty();
+        return !this.workTracker.isFinished();
+    }
+
+    // Called when the servant found nothing to do. Backs off by spinning for longer and longer after each failure in a row, and
+    // once that has gone on for too long, parks the servant until another servant adds a present to the chain
+    private void waitForWork() {
+        if (this.idleBackoff.spin()) {
+            return;
+        }
+
+        try {
+            long parkedNanos = this.workTracker.awaitWork(this.presentsBag, this.presentsChain);
+            if (BirthdayPresents.COLLECT_METRICS) {
+                ServantMetrics.current().recordPark(parkedNanos);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Appends the outcome of a task to the servant's ring in the event journal and prints it out if the print flag is turned on.
+    // This only ever happens after the chain operation has returned, so no servant prints while holding any of the chain's locks
+    private void logEvent(final long invokeTime, final long responseTime, final ServantTask task, final int outcome, final int presentTagNum) {
+        if (this.eventRing != null) {
+            this.eventRing.append(invokeTime, responseTime, EventJournal.packEvent(this.servantId, task, outcome, presentTagNum));
+        }
+        if (BirthdayPresents.PRINT_STEPS) {
+            System.out.println(EventJournal.describeEvent(this.servantId, task, outcome, presentTagNum));
+        }
+    }
+
+    // Logs the outcome of an attempt to write a thank you card for the present that was removed from the chain (null if none was)
+    private void logRemoval(final long invokeTime, final long responseTime, final Integer removedTagNum) {
+        if (removedTagNum != null) {
+            logEvent(invokeTime, responseTime, ServantTask.WRITE_THANK_YOU_CARD, EventJournal.OUTCOME_SUCCESS, removedTagNum);
+        }
+        else {
+            logEvent(invokeTime, responseTime, ServantTask.WRITE_THANK_YOU_CARD, EventJournal.OUTCOME_EMPTY, 0);
+        }
     }
 
     @Override
     public void run() {
+        ServantMetrics metrics = (BirthdayPresents.COLLECT_METRICS) ? ServantMetrics.current() : null;
+        boolean logEvents = this.eventRing != null || BirthdayPresents.PRINT_STEPS;
+        boolean timeTasks = this.eventRing != null || BirthdayPresents.COLLECT_METRICS;
+
         // Servant should keep randomly choosing tasks until thank 
         // you cards have been written for all the presents
         while (moreWorkToDo()) {
             ServantTask currTask = this.getRandomTask();
+            long taskStartTime = (timeTasks) ? System.nanoTime() : 0;
+            boolean idle = false;
+            int numAdded = 0;
+            int numProcessed = 0;
+
+            if (currTask == ServantTask.ADD_PRESENT_TO_CHAIN && BirthdayPresents.INSERT_BATCH_SIZE > 1) {
+                // Take a whole batch of presents out of the unordered bag at once
+                int numDrained = this.presentsBag.drainTo(this.sortedPresentTagNums, BirthdayPresents.INSERT_BATCH_SIZE, this.servantId - 1);
+
+                // Another servant/thread must have removed the last presents right before, so try choosing another task to do
+                if (numDrained == 0) {
+                    waitForWork();
+                    continue;
+                }
+
+                // Sort the batch of presents into the same descending order as the chain, so they can be inserted in one pass
+                Arrays.sort(this.sortedPresentTagNums, 0, numDrained);
+                for (int i = 0, j = numDrained - 1; i < j; i++, j--) {
+                    int temp = this.sortedPresentTagNums[i];
+                    this.sortedPresentTagNums[i] = this.sortedPresentTagNums[j];
+                    this.sortedPresentTagNums[j] = temp;
+                }
 
-            if (currTask == ServantTask.ADD_PRESENT_TO_CHAIN) {
+                int numInserted = this.presentsChain.insertPresents(this.sortedPresentTagNums, 0, numDrained, this.servantId);
+                numAdded = numInserted;
+
+                // The chain only reports how many presents in the batch were inserted, so if some of them were not, it is
+                // unknown which ones were
+                if (logEvents) {
+                    long taskEndTime = (timeTasks) ? System.nanoTime() : 0;
+                    int outcome = (numInserted == numDrained) ? EventJournal.OUTCOME_SUCCESS : EventJournal.OUTCOME_UNKNOWN;
+                    for (int i = 0; i < numDrained; i++) {
+                        logEvent(taskStartTime, taskEndTime, currTask, outcome, this.sortedPresentTagNums[i]);
+                    }
+                }
+            }
+            else if (currTask == ServantTask.ADD_PRESENT_TO_CHAIN) {
                 // Get the next present from the unordered bag
-                Integer presentTagNum = this.presentsBag.poll();
+                int presentTagNum = this.presentsBag.poll(this.servantId - 1);
 
                 // Another servant/thread must have removed the last present right before, so try choosing another task to do
-                if (presentTagNum == null) {
+                if (presentTagNum == PresentsBag.NO_PRESENT_TAG_NUM) {
+                    waitForWork();
                     continue;
                 }
 
-                this.presentsChain.insertPresent(presentTagNum, this.servantId);
+                boolean inserted = this.presentsChain.insertPresent(presentTagNum, this.servantId);
+                numAdded = (inserted) ? 1 : 0;
+
+                if (logEvents) {
+                    logEvent(taskStartTime, (timeTasks) ? System.nanoTime() : 0, currTask,
+                        (inserted) ? EventJournal.OUTCOME_SUCCESS : EventJournal.OUTCOME_FAILURE, presentTagNum);
+                }
+            }
+            else if (currTask == ServantTask.WRITE_THANK_YOU_CARD && this.relaxedRemovalStats != null) {
+                // Try to remove any one of the first few presents in the ordered chain and write a thank you card for it if successful
+                Integer removedTagNum = this.presentsChain.removePresentRelaxed(this.relaxedRemovalStats, this.servantId);
+                numProcessed = (removedTagNum != null) ? 1 : 0;
+                idle = removedTagNum == null;
+
+                if (logEvents) {
+                    logRemoval(taskStartTime, (timeTasks) ? System.nanoTime() : 0, removedTagNum);
+                }
+            }
+            else if (currTask == ServantTask.WRITE_THANK_YOU_CARD && BirthdayPresents.REMOVE_BATCH_SIZE > 1) {
+                // Try to remove a whole run of presents from the front of the ordered chain and write thank you cards for all of them
+                int numRemoved = this.presentsChain.removePresents(this.removedPresentTagNums, BirthdayPresents.REMOVE_BATCH_SIZE, this.servantId);
+                numProcessed = numRemoved;
+                idle = numRemoved == 0;
+
+                if (logEvents) {
+                    long taskEndTime = (timeTasks) ? System.nanoTime() : 0;
+                    if (numRemoved == 0) {
+                        logRemoval(taskStartTime, taskEndTime, null);
+                    }
+                    for (int i = 0; i < numRemoved; i++) {
+                        logRemoval(taskStartTime, taskEndTime, this.removedPresentTagNums[i]);
+                    }
+                }
             }
             else if (currTask == ServantTask.WRITE_THANK_YOU_CARD) {
                 // Just try to remove the first present in the ordered chain and write a thank you card for it if successful
-                this.presentsChain.removePresent(this.servantId);
+                Integer removedTagNum = this.presentsChain.removePresent(this.servantId);
+                numProcessed = (removedTagNum != null) ? 1 : 0;
+                idle = removedTagNum == null;
+
+                if (logEvents) {
+                    logRemoval(taskStartTime, (timeTasks) ? System.nanoTime() : 0, removedTagNum);
+                }
             }
             else {
                 // Pick any random present out of all the presents originally in the bag and check whether or not
@@ -153,262 +702,3252 @@ class ServantThread extends Thread {
                 int randPresentTagNum = ThreadLocalRandom.current().nextInt(BirthdayPresents.NUM_PRESENTS) + 1;
                 boolean foundPresent = this.presentsChain.containsPresent(randPresentTagNum);
 
-                // If print flag is turned on, print whether or not this present was found in the chain
-                if (BirthdayPresents.PRINT_STEPS) {
-                    if (foundPresent) {
-                        System.out.println("Servant " + servantId + " found present #" + randPresentTagNum + " in the ordered chain of presents.");
-                    }
-                    else {
-                        System.out.println("Servant " + servantId + " did not find present #" + randPresentTagNum + " in the ordered chain of presents.");
-                    }
+                if (logEvents) {
+                    logEvent(taskStartTime, (timeTasks) ? System.nanoTime() : 0, currTask,
+                        (foundPresent) ? EventJournal.OUTCOME_SUCCESS : EventJournal.OUTCOME_FAILURE, randPresentTagNum);
                 }
             }
+
+            if (BirthdayPresents.COLLECT_METRICS) {
+                metrics.recordTask(currTask, System.nanoTime() - taskStartTime);
+            }
+
+            // Let the other servants know that presents were added to the chain or had thank you cards written for them,
+            // or back off if this task found nothing to do. Searching never counts as progress or as being idle
+            if (numAdded > 0) {
+                this.workTracker.presentsAdded();
+            }
+            else if (numProcessed > 0) {
+                this.workTracker.presentsProcessed(numProcessed);
+            }
+
+            if (idle) {
+                waitForWork();
+            }
+            else if (currTask != ServantTask.SEARCH_PRESENT_IN_CHAIN) {
+                this.idleBackoff.reset();
+            }
         }
     }
 }
 
-// Node class for each present in the sorted chain. Tag number is the unique identifier for each present node. 
-// Each present also has its own removed flag to let other threads know whether or not they are holding onto a stale reference to this present.
-class PresentNode {
-    public final int tagNumber;
-    public PresentNode nextPresentNode;
-    public boolean removed;
-    public final Lock lock;
+// Randomized exponential backoff for servants that keep failing to make progress. Each failure doubles the most iterations the
+// servant may spin for (with a random number of iterations up to that limit, so that servants which failed together do not all retry
+// together), until the failures exceed the spin limit and the servant should park instead. Each servant keeps its own instance,
+// while the chains' retry loops use the static method since they only need to back off for the duration of a single operation.
+class Backoff {
+    // Most failures that are spun through before spin() tells the caller to park instead, which caps the spins at 2^10 iterations
+    private static final int MAX_SPIN_FAILURES = 10;
 
-    public PresentNode(final int tagNumber, final PresentNode nextPresentNode) {
-        this.tagNumber = tagNumber;
-        this.nextPresentNode = nextPresentNode;
-        this.removed = false;
-        this.lock = new ReentrantLock();
+    private int numFailures;
+
+    // Spins after another failure and returns true, or returns false without spinning once the servant has failed too many
+    // times in a row and should park instead
+    public boolean spin() {
+        if (this.numFailures >= MAX_SPIN_FAILURES) {
+            return false;
+        }
+        spinFor(1 << ++this.numFailures);
+        return true;
+    }
+
+    // Called once the servant made progress again
+    public void reset() {
+        this.numFailures = 0;
+    }
+
+    // Backs off before a chain operation tries again after its validation failed numRetries times in a row (0 means no backoff),
+    // so that servants fighting over the same nodes do not all lock them again at the same moment
+    public static void afterRetries(final int numRetries) {
+        if (numRetries > 0) {
+            spinFor(1 << Math.min(numRetries, MAX_SPIN_FAILURES));
+        }
+    }
+
+    private static void spinFor(final int maxSpins) {
+        int numSpins = ThreadLocalRandom.current().nextInt(maxSpins) + 1;
+        for (int i = 0; i < numSpins; i++) {
+            Thread.onSpinWait();
+        }
     }
 }
 
-// This lazy list implementation was heavily inspired by the implementation that can be found 
-// in section 9.7 of the text book ("The Art of Multiprocessor Programming"). It is used as the ordered
-// chain of presents that is constructed by the servants in this program.
-class LazyLinkedList {
-    // Impossible present tag number that can be used for the head node of the list
-    private final static int HEAD_LIST_TAG_NUM = -1;
+// Keeps track of how many presents still need a thank you card, so that servants know exactly when all the work is done instead of
+// polling the bag and the chain, and lets servants that have nothing to do park until a present is added to the chain. Adding a
+// present only touches the lock when some servant is actually parked. Parking is always timed, since a servant may check the chain
+// right before a present is added and miss the signal for it.
+class WorkTracker {
+    // Longest time a servant parks before checking for work again
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
 
-    private final PresentNode head;
+    private final LongAdder numRemainingPresents;
+    private final AtomicInteger numParkedServants;
+    private final ReentrantLock parkLock;
+    private final Condition workAvailable;
 
-    public LazyLinkedList() {
-        // Initialize head of list to empty present node that will always be fixed at the front of the list
-        this.head = new PresentNode(HEAD_LIST_TAG_NUM, null);
+    public WorkTracker(final int numPresents) {
+        this.numRemainingPresents = new LongAdder();
+        this.numRemainingPresents.add(numPresents);
+        this.numParkedServants = new AtomicInteger(0);
+        this.parkLock = new ReentrantLock();
+        this.workAvailable = this.parkLock.newCondition();
     }
 
-    // Checks whether or not current and predecessor node have been removed or if the connection
-    // between these two nodes have been broken to ensure validity of this piece of the list
-    private boolean validate(PresentNode pred, PresentNode curr) {
-        return !pred.removed && !curr.removed && pred.nextPresentNode == curr;
+    // Returns whether or not thank you cards have been written for every present. The count only ever goes down, so once its
+    // sum is 0 it stays 0 even though the sum is not an atomic snapshot
+    public boolean isFinished() {
+        return this.numRemainingPresents.sum() == 0;
     }
 
-    // Returns whether or not list is empty based on whether or not any present nodes follow the fixed head node
-    public boolean isEmpty() {
-        return this.head.nextPresentNode == null;
+    // Called after a servant added presents to the chain, waking up a parked servant to write a thank you card
+    public void presentsAdded() {
+        if (this.numParkedServants.get() > 0) {
+            this.parkLock.lock();
+            try {
+                this.workAvailable.signal();
+            }
+            finally {
+                this.parkLock.unlock();
+            }
+        }
     }
 
-    // Tries to insert new present into the chain of presents in its sorted position and returns whether or not it was successful
-    public boolean insertPresent(final int presentTagNum, final int servantId) {
-        // Keep trying to insert present until success or failure
-        while (true) {
-            // Get the first two nodes of the list
-            PresentNode pred = this.head;
-            PresentNode curr = this.head.nextPresentNode;
+    // Called after a servant wrote thank you cards for presents, waking up every parked servant once all the work is done
+    public void presentsProcessed(final int numPresents) {
+        this.numRemainingPresents.add(-numPresents);
 
-            // Keep iterating through the list until the end is reached or until the 
-            // two nodes that the new present should be inserted between are found
-            while (curr != null && presentTagNum < curr.tagNumber) {
-                pred = curr;
-                curr = curr.nextPresentNode;
+        if (isFinished() && this.numParkedServants.get() > 0) {
+            this.parkLock.lock();
+            try {
+                this.workAvailable.signalAll();
+            }
+            finally {
+                this.parkLock.unlock();
             }
+        }
+    }
 
-            pred.lock.lock();
-            try {
-                // If at the end of the list, only need the final node to be locked, so insert the new present at the end of the list
+    // Parks the servant until a present is added to the chain, all the work is done, or the timeout runs out, unless there is
+    // work to do right now. Returns how many nanoseconds the servant was parked for
+    public long awaitWork(final PresentsBag presentsBag, final PresentsChain presentsChain) throws InterruptedException {
+        long parkedNanos = 0;
+
+        this.numParkedServants.incrementAndGet();
+        this.parkLock.lock();
+        try {
+            if (presentsBag.isEmpty() && presentsChain.isEmpty() && !isFinished()) {
+                parkedNanos = MAX_PARK_NANOS - this.workAvailable.awaitNanos(MAX_PARK_NANOS);
+            }
+        }
+        finally {
+            this.parkLock.unlock();
+            this.numParkedServants.decrementAndGet();
+        }
+
+        return parkedNanos;
+    }
+}
+
+// Unordered bag of presents that the servants take presents out of. Instead of one shared queue of boxed tag numbers, the
+// shuffled tag numbers are kept in a single int array that is split into one contiguous shard per servant. Each servant takes
+// presents from its own shard by atomically advancing that shard's cursor, and only steals from the other shards once its own
+// shard is empty, so servants almost never touch the same cursor. Each shard is counted as empty exactly once, so checking
+// whether the whole bag is empty is just a single read that never contends with servants taking presents.
+class PresentsBag {
+    // Impossible present tag number that is returned when no present could be taken out of the bag
+    public static final int NO_PRESENT_TAG_NUM = -1;
+
+    // Number of ints between the cursors/flags of neighboring shards, so that each shard's cursor is on its own cache line
+    private static final int SHARD_PADDING = 16;
+
+    private final int[] presentTagNums;
+    private final int numShards;
+    private final int[] shardEnds;
+    private final AtomicIntegerArray shardCursors;
+    private final AtomicIntegerArray shardEmptyFlags;
+    private final AtomicInteger numEmptyShards;
+
+    public PresentsBag(final int numPresents, final int numShards) {
+        this.presentTagNums = new int[numPresents];
+        this.numShards = numShards;
+        this.shardEnds = new int[numShards];
+        this.shardCursors = new AtomicIntegerArray(numShards * SHARD_PADDING);
+        this.shardEmptyFlags = new AtomicIntegerArray(numShards * SHARD_PADDING);
+        this.numEmptyShards = new AtomicInteger(0);
+
+        // Create a sorted array of all the present's tag numbers and shuffle it to simulate the unordered bag of presents
+        for (int i = 0; i < numPresents; i++) {
+            this.presentTagNums[i] = i + 1;
+        }
+        for (int i = numPresents - 1; i > 0; i--) {
+            int j = ThreadLocalRandom.current().nextInt(i + 1);
+            int temp = this.presentTagNums[i];
+            this.presentTagNums[i] = this.presentTagNums[j];
+            this.presentTagNums[j] = temp;
+        }
+
+        // Split the shuffled presents into equal contiguous shards, with each shard's cursor starting at the shard's first present
+        for (int shard = 0; shard < numShards; shard++) {
+            this.shardCursors.set(shard * SHARD_PADDING, (int) ((long) numPresents * shard / numShards));
+            this.shardEnds[shard] = (int) ((long) numPresents * (shard + 1) / numShards);
+
+            if (this.shardCursors.get(shard * SHARD_PADDING) == this.shardEnds[shard]) {
+                markShardEmpty(shard);
+            }
+        }
+    }
+
+    // Returns whether or not every present has been taken out of the bag
+    public boolean isEmpty() {
+        return this.numEmptyShards.get() == this.numShards;
+    }
+
+    // Takes the next present out of the servant's own shard, or out of another servant's shard if its own shard is empty.
+    // Returns the present's tag number or NO_PRESENT_TAG_NUM if the bag is empty
+    public int poll(final int servantShard) {
+        for (int i = 0; i < this.numShards; i++) {
+            int shard = (servantShard + i) % this.numShards;
+            if (isShardEmpty(shard)) {
+                continue;
+            }
+
+            int index = this.shardCursors.getAndIncrement(shard * SHARD_PADDING);
+            if (index < this.shardEnds[shard]) {
+                // Taking the last present of the shard empties it
+                if (index == this.shardEnds[shard] - 1) {
+                    markShardEmpty(shard);
+                }
+                return this.presentTagNums[index];
+            }
+
+            // Another servant/thread must have taken the last present of this shard right before
+            markShardEmpty(shard);
+        }
+
+        return NO_PRESENT_TAG_NUM;
+    }
+
+    // Takes up to maxPresents presents out of the bag, starting with the servant's own shard and stealing from the other shards
+    // if there are not enough presents left in it, and stores their tag numbers in the array passed in. Returns how many presents were taken
+    public int drainTo(final int[] presentTagNums, final int maxPresents, final int servantShard) {
+        int numTaken = 0;
+
+        for (int i = 0; i < this.numShards && numTaken < maxPresents; i++) {
+            int shard = (servantShard + i) % this.numShards;
+            if (isShardEmpty(shard)) {
+                continue;
+            }
+
+            // Claim a whole run of presents in the shard at once and copy however many of them were actually left
+            int start = this.shardCursors.getAndAdd(shard * SHARD_PADDING, maxPresents - numTaken);
+            int numClaimed = Math.min(maxPresents - numTaken, this.shardEnds[shard] - start);
+            if (start + numClaimed >= this.shardEnds[shard]) {
+                markShardEmpty(shard);
+            }
+
+            if (numClaimed > 0) {
+                System.arraycopy(this.presentTagNums, start, presentTagNums, numTaken, numClaimed);
+                numTaken += numClaimed;
+            }
+        }
+
+        return numTaken;
+    }
+
+    private boolean isShardEmpty(final int shard) {
+        return this.shardEmptyFlags.get(shard * SHARD_PADDING) == 1;
+    }
+
+    // Counts the shard as empty, making sure that each shard is only ever counted once
+    private void markShardEmpty(final int shard) {
+        if (this.shardEmptyFlags.compareAndSet(shard * SHARD_PADDING, 0, 1)) {
+            this.numEmptyShards.incrementAndGet();
+        }
+    }
+}
+
+// Atomic bitset that keeps track of which present tag numbers are currently in the chain. Since tag numbers are dense
+// integers from 1 to the number of presents, each present is just one bit, and the chains set and clear a present's bit in the
+// same step that links it in or marks it removed. This turns containsPresent into a wait-free O(1) lookup of a single bit that never
+// has to traverse the chain or wait on a node's lock, so heavy search traffic never slows down the servants modifying the chain.
+class PresentsMembershipIndex {
+    private final AtomicLongArray bitWords;
+    private final int maxTagNum;
+
+    public PresentsMembershipIndex(final int maxTagNum) {
+        this.bitWords = new AtomicLongArray((maxTagNum >> 6) + 1);
+        this.maxTagNum = maxTagNum;
+    }
+
+    // Returns whether or not this tag number is within the range of tag numbers that the index keeps track of
+    public boolean covers(final int presentTagNum) {
+        return presentTagNum >= 0 && presentTagNum <= this.maxTagNum;
+    }
+
+    public void add(final int presentTagNum) {
+        long bit = 1L << presentTagNum;
+        int wordIndex = presentTagNum >> 6;
+        long word;
+        do {
+            word = this.bitWords.get(wordIndex);
+        } while (!this.bitWords.compareAndSet(wordIndex, word, word | bit));
+    }
+
+    public void remove(final int presentTagNum) {
+        long bit = 1L << presentTagNum;
+        int wordIndex = presentTagNum >> 6;
+        long word;
+        do {
+            word = this.bitWords.get(wordIndex);
+        } while (!this.bitWords.compareAndSet(wordIndex, word, word & ~bit));
+    }
+
+    public boolean contains(final int presentTagNum) {
+        return (this.bitWords.get(presentTagNum >> 6) & (1L << presentTagNum)) != 0;
+    }
+}
+
+// Keeps track of how far relaxed removals strayed from the strict order of the chain. The rank of a removal is how many
+// presents the servant skipped over before the present it removed (0 for the first present in the chain), which is never more than
+// the relaxation bound.
+class RelaxedRemovalStats {
+    public final int relaxationBound;
+
+    private final LongAdder numRemovals;
+    private final LongAdder totalRank;
+    private final LongAccumulator maxRank;
+    private final AtomicLongArray rankCounts;
+
+    public RelaxedRemovalStats(final int relaxationBound) {
+        this.relaxationBound = relaxationBound;
+        this.numRemovals = new LongAdder();
+        this.totalRank = new LongAdder();
+        this.maxRank = new LongAccumulator(Math::max, 0);
+        this.rankCounts = new AtomicLongArray(relaxationBound);
+    }
+
+    public void recordRemoval(final int rank) {
+        this.numRemovals.increment();
+        this.totalRank.add(rank);
+        this.maxRank.accumulate(rank);
+        this.rankCounts.incrementAndGet(rank);
+    }
+
+    // Prints how many removals there were, how far they strayed from the front of the chain on average and at most,
+    // and what fraction of the removals took the exact first present
+    public void printReport() {
+        long removals = this.numRemovals.sum();
+        double averageRank = (removals == 0) ? 0 : (double) this.totalRank.sum() / removals;
+        double strictFraction = (removals == 0) ? 0 : 100.0 * this.rankCounts.get(0) / removals;
+
+        System.out.println("Relaxed removals: " + removals + " with a relaxation bound of " + this.relaxationBound + " presents");
+        System.out.printf("    Average rank error: %.2f, maximum rank error: %d, removals of the exact first present: %.1f%%%n",
+            averageRank, this.maxRank.get(), strictFraction);
+    }
+}
+
+// Histogram of latencies in nanoseconds with the same log-linear bucketing that HdrHistogram uses: every power of 2 range of
+// values is split into 32 equally sized sub-buckets, so any value is recorded with at most ~3% error while the histogram
+// only takes a fixed array of counts no matter how large the values get. Only meant to be used by a single thread at a time.
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    private final long[] counts;
+    private long totalCount;
+    private long totalValue;
+    private long maxValue;
+
+    public LatencyHistogram() {
+        this.counts = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT];
+    }
+
+    // Returns the bucket that a value falls into. Values below 32 each have their own bucket, and larger values are bucketed
+    // by their highest set bit (the magnitude) and the 5 bits right below it
+    private static int bucketIndex(final long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) - SUB_BUCKET_COUNT;
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    // Returns the largest value that falls into the bucket, which is what percentiles are reported as
+    private static long highestValueInBucket(final int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+
+        int magnitude = index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+        long subBucket = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << (magnitude - SUB_BUCKET_BITS)) - 1;
+    }
+
+    public void record(final long value) {
+        long clampedValue = Math.max(0, value);
+        this.counts[bucketIndex(clampedValue)]++;
+        this.totalCount++;
+        this.totalValue += clampedValue;
+        this.maxValue = Math.max(this.maxValue, clampedValue);
+    }
+
+    public void add(final LatencyHistogram other) {
+        for (int i = 0; i < this.counts.length; i++) {
+            this.counts[i] += other.counts[i];
+        }
+        this.totalCount += other.totalCount;
+        this.totalValue += other.totalValue;
+        this.maxValue = Math.max(this.maxValue, other.maxValue);
+    }
+
+    public long getTotalCount() {
+        return this.totalCount;
+    }
+
+    public long getMaxValue() {
+        return this.maxValue;
+    }
+
+    public double getMean() {
+        return (this.totalCount == 0) ? 0 : (double) this.totalValue / this.totalCount;
+    }
+
+    // Returns the value that the given percentage of all recorded values are less than or equal to
+    public long getValueAtPercentile(final double percentile) {
+        long targetCount = Math.max(1, (long) Math.ceil(percentile / 100.0 * this.totalCount));
+        long cumulativeCount = 0;
+
+        for (int i = 0; i < this.counts.length; i++) {
+            cumulativeCount += this.counts[i];
+            if (cumulativeCount >= targetCount) {
+                return Math.min(highestValueInBucket(i), this.maxValue);
+            }
+        }
+
+        return this.maxValue;
+    }
+}
+
+// Hot path metrics for the servants and the chain of presents. Every thread that records metrics gets its own instance
+// (so recording is just a plain increment of a field that no other thread writes to), and all the instances are merged
+// into one at the end of the run. Recording only happens when the COLLECT_METRICS flag is turned on. That flag is set before
+// any servant starts and never changes while they run, so when it is turned off the hot paths only pay for one predictable branch.
+// Every run starts a new generation of metrics, so metrics from earlier runs in the same JVM are never merged into a later one.
+class ServantMetrics {
+    // Percentiles that are printed out for every latency histogram
+    private static final double[] REPORTED_PERCENTILES = {50, 90, 99, 99.9};
+
+    // Every thread's metrics for the current run, so that they can all be found and merged at the end of the run
+    private static final Queue<ServantMetrics> ALL_THREAD_METRICS = new ConcurrentLinkedQueue<>();
+    private static final ThreadLocal<ServantMetrics> THREAD_METRICS = new ThreadLocal<>();
+
+    // Run that metrics are currently being recorded for, which threads check to start over with new metrics in a new run
+    private static volatile int currentRun = 0;
+
+    private final int run;
+
+    private final long[] taskCounts;
+    private final LatencyHistogram[] taskLatencies;
+    private final LatencyHistogram lockWaits;
+    private long numValidationRetries;
+    private long numLockAcquisitions;
+    private long numContendedLockAcquisitions;
+    private long numTraversals;
+    private long totalTraversalLength;
+    private long maxTraversalLength;
+    private long numParks;
+    private long totalParkedNanos;
+
+    private ServantMetrics(final int run) {
+        this.run = run;
+        int numTasks = Servant.ServantTask.values().length;
+        this.taskCounts = new long[numTasks];
+        this.taskLatencies = new LatencyHistogram[numTasks];
+        for (int i = 0; i < numTasks; i++) {
+            this.taskLatencies[i] = new LatencyHistogram();
+        }
+        this.lockWaits = new LatencyHistogram();
+    }
+
+    // Throws away the metrics of the previous run and starts recording a new one. Must be called before any servant of the run starts
+    public static void startRun() {
+        ALL_THREAD_METRICS.clear();
+        currentRun++;
+    }
+
+    // Returns the metrics of the calling thread for the current run
+    public static ServantMetrics current() {
+        ServantMetrics metrics = THREAD_METRICS.get();
+        if (metrics == null || metrics.run != currentRun) {
+            metrics = new ServantMetrics(currentRun);
+            THREAD_METRICS.set(metrics);
+            ALL_THREAD_METRICS.add(metrics);
+        }
+        return metrics;
+    }
+
+    // Returns the combined metrics of every thread in the current run. Should only be called once all the threads are done recording metrics
+    public static ServantMetrics mergeAll() {
+        ServantMetrics merged = new ServantMetrics(currentRun);
+
+        for (ServantMetrics metrics : ALL_THREAD_METRICS) {
+            for (int i = 0; i < merged.taskCounts.length; i++) {
+                merged.taskCounts[i] += metrics.taskCounts[i];
+                merged.taskLatencies[i].add(metrics.taskLatencies[i]);
+            }
+            merged.lockWaits.add(metrics.lockWaits);
+            merged.numValidationRetries += metrics.numValidationRetries;
+            merged.numLockAcquisitions += metrics.numLockAcquisitions;
+            merged.numContendedLockAcquisitions += metrics.numContendedLockAcquisitions;
+            merged.numTraversals += metrics.numTraversals;
+            merged.totalTraversalLength += metrics.totalTraversalLength;
+            merged.maxTraversalLength = Math.max(merged.maxTraversalLength, metrics.maxTraversalLength);
+            merged.numParks += metrics.numParks;
+            merged.totalParkedNanos += metrics.totalParkedNanos;
+        }
+
+        return merged;
+    }
+
+    public void recordTask(final Servant.ServantTask task, final long latencyNanos) {
+        this.taskCounts[task.ordinal()]++;
+        this.taskLatencies[task.ordinal()].record(latencyNanos);
+    }
+
+    public void recordValidationRetry() {
+        this.numValidationRetries++;
+    }
+
+    public void recordTraversal(final int traversalLength) {
+        this.numTraversals++;
+        this.totalTraversalLength += traversalLength;
+        this.maxTraversalLength = Math.max(this.maxTraversalLength, traversalLength);
+    }
+
+    public void recordPark(final long parkedNanos) {
+        this.numParks++;
+        this.totalParkedNanos += parkedNanos;
+    }
+
+    // Locks the lock passed in, only timing how long the thread waited for it when the lock is not immediately available
+    public void lockAndRecordWait(final Lock lock) {
+        this.numLockAcquisitions++;
+
+        if (lock.tryLock()) {
+            this.lockWaits.record(0);
+            return;
+        }
+
+        this.numContendedLockAcquisitions++;
+        long startTime = System.nanoTime();
+        lock.lock();
+        this.lockWaits.record(System.nanoTime() - startTime);
+    }
+
+    // Prints the operation counts and latency percentiles of each servant task followed by the chain's hot path counters
+    public void printReport() {
+        System.out.println("Servant task metrics (latencies in microseconds):");
+        System.out.printf("    %-24s %10s %10s %10s %10s %10s %10s %10s%n", "Task", "Count", "Mean", "p50", "p90", "p99", "p99.9", "Max");
+        for (Servant.ServantTask task : Servant.ServantTask.values()) {
+            LatencyHistogram latencies = this.taskLatencies[task.ordinal()];
+            System.out.printf("    %-24s %10d %10.1f", task, this.taskCounts[task.ordinal()], latencies.getMean() / 1000.0);
+            for (double percentile : REPORTED_PERCENTILES) {
+                System.out.printf(" %10.1f", latencies.getValueAtPercentile(percentile) / 1000.0);
+            }
+            System.out.printf(" %10.1f%n", latencies.getMaxValue() / 1000.0);
+        }
+
+        System.out.println("Chain metrics:");
+        System.out.println("    Validation retries: " + this.numValidationRetries);
+        System.out.printf("    Lock acquisitions: %d (%d contended), mean wait: %.1fns, p99 wait: %dns, max wait: %dns%n",
+            this.numLockAcquisitions, this.numContendedLockAcquisitions, this.lockWaits.getMean(),
+            this.lockWaits.getValueAtPercentile(99), this.lockWaits.getMaxValue());
+        System.out.printf("    Traversals: %d, mean length: %.1f nodes, max length: %d nodes%n", this.numTraversals,
+            (this.numTraversals == 0) ? 0.0 : (double) this.totalTraversalLength / this.numTraversals, this.maxTraversalLength);
+        System.out.printf("    Idle servant parks: %d, total time parked: %.1fms%n", this.numParks, this.totalParkedNanos / 1e6);
+    }
+
+    // Writes every metric to a CSV file with one "metric,value" row per metric
+    public void writeCsv(final String fileName) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new FileWriter(fileName))) {
+            writer.println("metric,value");
+            for (Servant.ServantTask task : Servant.ServantTask.values()) {
+                LatencyHistogram latencies = this.taskLatencies[task.ordinal()];
+                writer.println(task + ".count," + this.taskCounts[task.ordinal()]);
+                writer.println(task + ".mean_ns," + latencies.getMean());
+                for (double percentile : REPORTED_PERCENTILES) {
+                    writer.println(task + ".p" + percentile + "_ns," + latencies.getValueAtPercentile(percentile));
+                }
+                writer.println(task + ".max_ns," + latencies.getMaxValue());
+            }
+            writer.println("validation_retries," + this.numValidationRetries);
+            writer.println("lock_acquisitions," + this.numLockAcquisitions);
+            writer.println("contended_lock_acquisitions," + this.numContendedLockAcquisitions);
+            writer.println("lock_wait.mean_ns," + this.lockWaits.getMean());
+            for (double percentile : REPORTED_PERCENTILES) {
+                writer.println("lock_wait.p" + percentile + "_ns," + this.lockWaits.getValueAtPercentile(percentile));
+            }
+            writer.println("lock_wait.max_ns," + this.lockWaits.getMaxValue());
+            writer.println("traversals," + this.numTraversals);
+            writer.println("traversal_length.total," + this.totalTraversalLength);
+            writer.println("traversal_length.max," + this.maxTraversalLength);
+            writer.println("parks," + this.numParks);
+            writer.println("parked_ns," + this.totalParkedNanos);
+        }
+    }
+}
+
+// Single producer/single consumer ring buffer of compact binary events that one servant appends to and the journal's writer thread
+// drains. Each event is just three longs (invocation time, response time, and the packed event), so appending one never allocates,
+// never takes a lock, and never touches a cache line that another servant writes to. Only the owning servant may call append and
+// only the writer thread may call drainTo.
+class EventRing {
+    private static final int LONGS_PER_EVENT = 3;
+
+    private final long[] events;
+    private final int capacity;
+    private final int mask;
+
+    // Number of events the writer has drained so far and number of events the servant has appended so far. Each counter is only
+    // ever written by one thread, which publishes it with a release store
+    private final AtomicLong head;
+    private final AtomicLong tail;
+
+    // Servant's own copies of the counters, so that it only has to read the writer's head again once the ring looks full
+    private long producerTail;
+    private long cachedHead;
+
+    public EventRing(final int capacity) {
+        this.capacity = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.mask = this.capacity - 1;
+        this.events = new long[this.capacity * LONGS_PER_EVENT];
+        this.head = new AtomicLong(0);
+        this.tail = new AtomicLong(0);
+    }
+
+    // Appends an event to the ring. If the writer has fallen a whole ring behind, the servant waits for it to catch up
+    // instead of dropping the event, since the decoder needs the complete history to check it
+    public void append(final long invokeTime, final long responseTime, final long event) {
+        while (this.producerTail - this.cachedHead >= this.capacity) {
+            this.cachedHead = this.head.get();
+            if (this.producerTail - this.cachedHead >= this.capacity) {
+                Thread.onSpinWait();
+            }
+        }
+
+        int index = (int) (this.producerTail & this.mask) * LONGS_PER_EVENT;
+        this.events[index] = invokeTime;
+        this.events[index + 1] = responseTime;
+        this.events[index + 2] = event;
+
+        this.producerTail++;
+        this.tail.lazySet(this.producerTail);
+    }
+
+    // Writes every event appended so far to the stream (or throws them away if the stream is null) and returns how many there were
+    public int drainTo(final DataOutputStream out) throws IOException {
+        long currHead = this.head.get();
+        long currTail = this.tail.get();
+
+        for (long i = currHead; i < currTail; i++) {
+            int index = (int) (i & this.mask) * LONGS_PER_EVENT;
+            if (out != null) {
+                out.writeLong(this.events[index]);
+                out.writeLong(this.events[index + 1]);
+                out.writeLong(this.events[index + 2]);
+            }
+        }
+
+        this.head.lazySet(currTail);
+        return (int) (currTail - currHead);
+    }
+}
+
+// Binary journal of every task the servants perform. Each servant appends its events to its own EventRing, and a background writer
+// thread drains all the rings into the journal file, so servants never print or do any I/O themselves. The file starts with a header
+// (magic number, version, number of servants, number of presents, and whether removals were relaxed), followed by one record of three
+// longs per event: the nanoTime the task was invoked, the nanoTime it responded, and the packed servant id, task, outcome, and tag number.
+// Records of different servants are interleaved in whatever order the writer drained them, so JournalDecoder sorts them by time.
+class EventJournal {
+    public static final int MAGIC_NUMBER = 0x50524553;
+    public static final int VERSION = 1;
+
+    // Possible outcomes of a task: adding or finding a present failed, it succeeded, there was no present in the chain to
+    // write a thank you card for, or a present was part of a batch that was only partially inserted into the chain
+    public static final int OUTCOME_FAILURE = 0;
+    public static final int OUTCOME_SUCCESS = 1;
+    public static final int OUTCOME_EMPTY = 2;
+    public static final int OUTCOME_UNKNOWN = 3;
+
+    // Number of events each servant's ring can hold before the servant has to wait for the writer
+    private static final int RING_CAPACITY = 1 << 14;
+
+    // How long the writer sleeps when it finds all the rings empty
+    private static final long IDLE_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final EventRing[] rings;
+    private final DataOutputStream out;
+    private final Thread writerThread;
+    private volatile boolean closed;
+    private IOException writeError;
+
+    public EventJournal(final String fileName, final int numServants, final int numPresents, final boolean relaxedRemovals) throws IOException {
+        // Servant ids only get 16 bits in each packed event
+        if (numServants > 0xFFFF) {
+            throw new IllegalArgumentException("The journal can only keep events for up to " + 0xFFFF + " servants");
+        }
+
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16));
+        this.out.writeInt(MAGIC_NUMBER);
+        this.out.writeInt(VERSION);
+        this.out.writeInt(numServants);
+        this.out.writeInt(numPresents);
+        this.out.writeInt((relaxedRemovals) ? 1 : 0);
+
+        this.rings = new EventRing[numServants];
+        for (int i = 0; i < numServants; i++) {
+            this.rings[i] = new EventRing(RING_CAPACITY);
+        }
+
+        this.writerThread = new Thread(this::writeEvents, "journal-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    // Returns the ring that the servant with this id appends its events to
+    public EventRing getRing(final int servantId) {
+        return this.rings[servantId - 1];
+    }
+
+    // Packs the servant id (16 bits), task (8 bits), outcome (8 bits), and tag number (32 bits) of an event into a single long
+    public static long packEvent(final int servantId, final Servant.ServantTask task, final int outcome, final int presentTagNum) {
+        return ((long) servantId << 48) | ((long) task.ordinal() << 40) | ((long) outcome << 32) | (presentTagNum & 0xFFFFFFFFL);
+    }
+
+    public static int getServantId(final long event) {
+        return (int) (event >>> 48);
+    }
+
+    public static Servant.ServantTask getTask(final long event) {
+        return Servant.ServantTask.values()[(int) (event >>> 40) & 0xFF];
+    }
+
+    public static int getOutcome(final long event) {
+        return (int) (event >>> 32) & 0xFF;
+    }
+
+    public static int getPresentTagNum(final long event) {
+        return (int) event;
+    }
+
+    // Returns the same message that the servant prints for this event when PRINT_STEPS is turned on
+    public static String describeEvent(final int servantId, final Servant.ServantTask task, final int outcome, final int presentTagNum) {
+        if (task == Servant.ServantTask.ADD_PRESENT_TO_CHAIN) {
+            if (outcome == OUTCOME_SUCCESS) {
+                return "Servant " + servantId + " successfully added present #" + presentTagNum + " to the ordered chain of presents.";
+            }
+            else if (outcome == OUTCOME_UNKNOWN) {
+                return "Servant " + servantId + " added present #" + presentTagNum + " as part of a batch that was only partially added to the ordered chain of presents.";
+            }
+            return "Servant " + servantId + " failed to add present #" + presentTagNum + " to the ordered chain of presents.";
+        }
+        else if (task == Servant.ServantTask.WRITE_THANK_YOU_CARD) {
+            if (outcome == OUTCOME_SUCCESS) {
+                return "Servant " + servantId + " successfully wrote thank you card for present #" + presentTagNum + ".";
+            }
+            return "Servant " + servantId + " could not find any presents in the chain to write thank you cards for at this time.";
+        }
+
+        if (outcome == OUTCOME_SUCCESS) {
+            return "Servant " + servantId + " found present #" + presentTagNum + " in the ordered chain of presents.";
+        }
+        return "Servant " + servantId + " did not find present #" + presentTagNum + " in the ordered chain of presents.";
+    }
+
+    // Keeps draining every servant's ring into the file until the journal is closed, then drains whatever is left one last time.
+    // If writing fails, the error is kept for close() to throw and the remaining events are thrown away so no servant gets stuck
+    private void writeEvents() {
+        DataOutputStream currOut = this.out;
+
+        while (true) {
+            boolean wasClosed = this.closed;
+            int numDrained = 0;
+
+            for (EventRing ring : this.rings) {
+                try {
+                    numDrained += ring.drainTo(currOut);
+                }
+                catch (IOException e) {
+                    this.writeError = e;
+                    currOut = null;
+                }
+            }
+
+            if (wasClosed) {
+                break;
+            }
+            if (numDrained == 0) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+
+        try {
+            this.out.close();
+        }
+        catch (IOException e) {
+            if (this.writeError == null) {
+                this.writeError = e;
+            }
+        }
+    }
+
+    // Waits for the writer to write every event appended so far and closes the file. Must only be called once every servant is done
+    public void close() throws IOException, InterruptedException {
+        this.closed = true;
+        this.writerThread.join();
+
+        if (this.writeError != null) {
+            throw this.writeError;
+        }
+    }
+}
+
+// Common operations that every implementation of the ordered chain of presents must support. Presents are
+// kept in descending order of their tag numbers, so the first present in the chain always has the largest tag number.
+interface PresentsChain {
+    // Returns whether or not there are currently any presents in the chain
+    boolean isEmpty();
+
+    // Tries to insert new present into the chain of presents in its sorted position and returns whether or not it was successful
+    boolean insertPresent(final int presentTagNum, final int servantId);
+
+    // Tries to insert the run of presents from index start (inclusive) to index end (exclusive) of the array passed in, which is
+    // already sorted in descending order of tag numbers, into the chain and returns how many of them were successfully inserted.
+    // Implementations that can resume each insertion from where the previous one left off should override this, so the whole
+    // run only takes a single traversal of the chain
+    default int insertPresents(final int[] presentTagNums, final int start, final int end, final int servantId) {
+        int numInserted = 0;
+        for (int i = start; i < end; i++) {
+            if (insertPresent(presentTagNums[i], servantId)) {
+                numInserted++;
+            }
+        }
+        return numInserted;
+    }
+
+    // Tries to remove the first present in the chain of presents. Returns the removed present's tag number if successful
+    // and null if not successful
+    Integer removePresent(final int servantId);
+
+    // Tries to remove any one of the first few presents in the chain of presents (at most the stats' relaxation bound presents are
+    // skipped over), so that servants removing at the same time spread out instead of all competing for the first present.
+    // Records how many presents were skipped in the stats passed in and returns the removed present's tag number if successful
+    // and null if not successful. Implementations that cannot relax their order just remove the first present
+    default Integer removePresentRelaxed(final RelaxedRemovalStats relaxedRemovalStats, final int servantId) {
+        Integer removedTagNum = removePresent(servantId);
+        if (removedTagNum != null) {
+            relaxedRemovalStats.recordRemoval(0);
+        }
+        return removedTagNum;
+    }
+
+    // Tries to remove up to maxPresents presents from the front of the chain of presents, storing their tag numbers in order
+    // in the array passed in. Returns how many presents were removed (0 if the chain is empty). Implementations that can remove
+    // the whole run of presents in a single critical section should override this
+    default int removePresents(final int[] removedTagNums, final int maxPresents, final int servantId) {
+        int numRemoved = 0;
+        while (numRemoved < maxPresents) {
+            Integer removedTagNum = removePresent(servantId);
+            if (removedTagNum == null) {
+                break;
+            }
+            removedTagNums[numRemoved++] = removedTagNum;
+        }
+        return numRemoved;
+    }
+
+    // Checks whether or not present with this tag number is in the chain
+    boolean containsPresent(final int presentTagNum);
+
+    // Returns the number of presents in the chain. It is exact whenever no servant is in the middle of changing the chain, and
+    // otherwise only off by the presents that are being inserted or removed at that moment
+    long size();
+}
+
+// Chain of presents that can also be read as a whole while the servants keep working on it
+interface SnapshotPresentsChain extends PresentsChain {
+    // Takes a snapshot of every present in the chain at a single point in time, which can be iterated over while servants keep
+    // inserting and removing presents, without taking any locks or holding up the servants. The snapshot must be closed once it
+    // is no longer needed
+    PresentsSnapshot snapshot();
+}
+
+// Node class for each present in the sorted chain. Tag number is the unique identifier for each present node. 
+// Each present also has its own removed flag to let other threads know whether or not they are holding onto a stale reference to this present.
+// When the list keeps versions for snapshots, every time a node's next node changes, the change is also recorded as a new version
+// of the pointer for snapshots to follow.
+class PresentNode {
+    public final int tagNumber;
+    public PresentNode nextPresentNode;
+    public boolean removed;
+    public final Lock lock;
+
+    // Versions of nextPresentNode, newest first (null if the list does not keep versions for snapshots)
+    public volatile NextPresentVersion nextVersions;
+
+    public PresentNode(final int tagNumber, final PresentNode nextPresentNode) {
+        this.tagNumber = tagNumber;
+        this.nextPresentNode = nextPresentNode;
+        this.removed = false;
+        this.lock = new ReentrantLock();
+        this.nextVersions = null;
+    }
+}
+
+// One version of a node's next pointer, stamped with the snapshot clock of the chain it belongs to. The same way versioned CAS
+// objects work, a version is installed first and only stamped afterwards with whatever the clock reads then. Snapshots that come
+// across a version that is not stamped yet stamp it themselves, so every version ends up with the first time stamp read after it
+// was installed, and a snapshot taken at time t (which moves the clock past t) sees exactly the versions stamped at or before t
+class NextPresentVersion {
+    // Stamp of a version that was installed but has not been stamped yet
+    public static final long UNSTAMPED = Long.MAX_VALUE;
+
+    private static final AtomicLongFieldUpdater<NextPresentVersion> STAMP_UPDATER =
+        AtomicLongFieldUpdater.newUpdater(NextPresentVersion.class, "stamp");
+
+    public final PresentNode nextPresentNode;
+    private volatile long stamp;
+
+    // Next older version, which is cut off once no open snapshot could still need it
+    public NextPresentVersion olderVersion;
+
+    public NextPresentVersion(final PresentNode nextPresentNode, final long stamp, final NextPresentVersion olderVersion) {
+        this.nextPresentNode = nextPresentNode;
+        this.stamp = stamp;
+        this.olderVersion = olderVersion;
+    }
+
+    // Returns the version's stamp, first stamping it with the clock if nobody has yet
+    public long getStamp(final SnapshotClock snapshotClock) {
+        if (this.stamp == UNSTAMPED) {
+            STAMP_UPDATER.compareAndSet(this, UNSTAMPED, snapshotClock.getTime());
+        }
+        return this.stamp;
+    }
+
+    // Returns the node's next node as it was at the given snapshot time
+    public static PresentNode getNextNodeAt(final PresentNode node, final long snapshotTime, final SnapshotClock snapshotClock) {
+        NextPresentVersion version = node.nextVersions;
+        while (version.getStamp(snapshotClock) > snapshotTime) {
+            version = version.olderVersion;
+        }
+        return version.nextPresentNode;
+    }
+}
+
+// Clock that the versions of the nodes' next pointers are stamped with, which every snapshot moves forward by 1, along with the
+// snapshots that are still open so that versions they might still need are kept around
+class SnapshotClock {
+    private final AtomicLong time;
+    private final Queue<PresentsSnapshot> openSnapshots;
+
+    public SnapshotClock() {
+        this.time = new AtomicLong(1);
+        this.openSnapshots = new ConcurrentLinkedQueue<>();
+    }
+
+    public long getTime() {
+        return this.time.get();
+    }
+
+    // Takes a snapshot of the lists starting at these head nodes by registering it as open and then moving the clock forward,
+    // so every version stamped at or before the snapshot's time stays reachable until the snapshot is closed, and every change
+    // made after it is stamped with a later time
+    public PresentsSnapshot takeSnapshot(final PresentNode... heads) {
+        PresentsSnapshot snapshot = new PresentsSnapshot(heads, this);
+        this.openSnapshots.add(snapshot);
+        snapshot.setSnapshotTime(this.time.getAndIncrement());
+        return snapshot;
+    }
+
+    // Returns the oldest time that an open snapshot was taken at. Snapshots that are not open yet will be taken at or after the
+    // current time, so with no open snapshots only the current time is needed and the open snapshots do not need to be walked
+    public long getOldestNeededTime() {
+        long oldestNeededTime = this.time.get();
+        if (this.openSnapshots.isEmpty()) {
+            return oldestNeededTime;
+        }
+
+        for (PresentsSnapshot snapshot : this.openSnapshots) {
+            oldestNeededTime = Math.min(oldestNeededTime, snapshot.getSnapshotTime());
+        }
+        return oldestNeededTime;
+    }
+
+    public void close(final PresentsSnapshot snapshot) {
+        this.openSnapshots.remove(snapshot);
+    }
+}
+
+// This lazy list implementation was heavily inspired by the implementation that can be found 
+// in section 9.7 of the text book ("The Art of Multiprocessor Programming"). It is used as the ordered
+// chain of presents that is constructed by the servants in this program.
+class LazyLinkedList implements SnapshotPresentsChain {
+    // Impossible present tag number that can be used for the head node of the list
+    private final static int HEAD_LIST_TAG_NUM = -1;
+
+    // Each thread's buffer of the present nodes it has locked during a batch removal, kept between removals so that removing
+    // a batch doesn't allocate anything. It is only replaced when a batch larger than the buffer is asked for
+    private static final ThreadLocal<PresentNode[]> LOCKED_NODES = ThreadLocal.withInitial(() -> new PresentNode[0]);
+
+    private final PresentNode head;
+
+    // Optional bitset of the presents currently in the chain (null if searches should traverse the chain instead)
+    private final PresentsMembershipIndex membershipIndex;
+
+    // Number of presents in the chain, updated after every successful insertion and removal
+    private final LongAdder numPresents;
+
+    // Clock that versions of the nodes' next pointers are stamped with (null if no versions are kept and the list cannot take
+    // snapshots). Lists that are parts of a larger chain share the same clock, so that they can be snapshotted together
+    private final SnapshotClock snapshotClock;
+
+    public LazyLinkedList() {
+        this(null, null);
+    }
+
+    public LazyLinkedList(final PresentsMembershipIndex membershipIndex, final SnapshotClock snapshotClock) {
+        this.membershipIndex = membershipIndex;
+        this.numPresents = new LongAdder();
+        this.snapshotClock = snapshotClock;
+
+        // Initialize head of list to empty present node that will always be fixed at the front of the list
+        this.head = createNode(HEAD_LIST_TAG_NUM, null);
+    }
+
+    PresentNode getHead() {
+        return this.head;
+    }
+
+    // Creates a new present node, with its first version of its next node if versions are being kept. That version is stamped 0,
+    // since the node can only be reached by a snapshot through a version of its predecessor that is stamped after the node was
+    // linked into the chain
+    private PresentNode createNode(final int presentTagNum, final PresentNode nextPresentNode) {
+        PresentNode node = new PresentNode(presentTagNum, nextPresentNode);
+        if (this.snapshotClock != null) {
+            node.nextVersions = new NextPresentVersion(nextPresentNode, 0, null);
+        }
+        return node;
+    }
+
+    // Points the node at a new next node and, if versions are being kept, records the change as a new version for snapshots.
+    // Must only be called while holding the node's lock, so that only one version of each node is ever waiting to be stamped
+    private void setNextNode(final PresentNode node, final PresentNode nextPresentNode) {
+        if (this.snapshotClock == null) {
+            node.nextPresentNode = nextPresentNode;
+            return;
+        }
+
+        NextPresentVersion version = new NextPresentVersion(nextPresentNode, NextPresentVersion.UNSTAMPED, node.nextVersions);
+        node.nextVersions = version;
+        node.nextPresentNode = nextPresentNode;
+        version.getStamp(this.snapshotClock);
+
+        // Only the newest version stamped at or before the oldest time that any snapshot could still be taken at is needed,
+        // along with anything newer, so every older version is cut off
+        long oldestNeededTime = this.snapshotClock.getOldestNeededTime();
+        while (version.getStamp(this.snapshotClock) > oldestNeededTime && version.olderVersion != null) {
+            version = version.olderVersion;
+        }
+        version.olderVersion = null;
+    }
+
+    @Override
+    public long size() {
+        return this.numPresents.sum();
+    }
+
+    @Override
+    public PresentsSnapshot snapshot() {
+        if (this.snapshotClock == null) {
+            throw new IllegalStateException("This lazy list was created without a snapshot clock, so it keeps no versions to snapshot");
+        }
+        return this.snapshotClock.takeSnapshot(this.head);
+    }
+
+    // Locks the node, recording how long the servant had to wait for its lock if metrics are being collected
+    private static void lockNode(final PresentNode node) {
+        if (BirthdayPresents.COLLECT_METRICS) {
+            ServantMetrics.current().lockAndRecordWait(node.lock);
+        }
+        else {
+            node.lock.lock();
+        }
+    }
+
+    // Records that an operation failed validation and has to start over if metrics are being collected
+    private static void recordValidationRetry() {
+        if (BirthdayPresents.COLLECT_METRICS) {
+            ServantMetrics.current().recordValidationRetry();
+        }
+    }
+
+    // Checks whether or not current and predecessor node have been removed or if the connection
+    // between these two nodes have been broken to ensure validity of this piece of the list
+    private boolean validate(PresentNode pred, PresentNode curr) {
+        return !pred.removed && !curr.removed && pred.nextPresentNode == curr;
+    }
+
+    // Returns whether or not list is empty based on whether or not any present nodes follow the fixed head node
+    @Override
+    public boolean isEmpty() {
+        return this.head.nextPresentNode == null;
+    }
+
+    // Tries to insert new present into the chain of presents in its sorted position and returns whether or not it was successful
+    @Override
+    public boolean insertPresent(final int presentTagNum, final int servantId) {
+        return insertPresentAfter(this.head, presentTagNum, servantId) != null;
+    }
+
+    // Tries to insert a run of presents sorted in descending order into the chain. Since each present in the run belongs somewhere
+    // after the previous one, each insertion resumes its search from the previous present's node instead of the head, so the
+    // whole run is merged into the chain in a single traversal. Returns how many presents were successfully inserted
+    @Override
+    public int insertPresents(final int[] presentTagNums, final int start, final int end, final int servantId) {
+        int numInserted = 0;
+        PresentNode lastInserted = this.head;
+
+        for (int i = start; i < end; i++) {
+            PresentNode newPresentNode = insertPresentAfter(lastInserted, presentTagNums[i], servantId);
+
+            if (newPresentNode != null) {
+                lastInserted = newPresentNode;
+                numInserted++;
+            }
+        }
+
+        return numInserted;
+    }
+
+    // Creates a new present node pointing to the next node passed in and links it in right after the predecessor node, which
+    // must be locked, recording the present in the membership index while the predecessor is still locked. When versions are
+    // kept, the new node stays locked until the predecessor's new version is stamped: otherwise another servant could already
+    // link a present in after the new node with an earlier stamp, and a snapshot taken in between would miss that present even
+    // though its insertion had returned
+    private PresentNode linkNewPresent(final PresentNode pred, final int presentTagNum, final PresentNode nextPresentNode) {
+        PresentNode newPresentNode = createNode(presentTagNum, nextPresentNode);
+        if (this.snapshotClock != null) {
+            newPresentNode.lock.lock();
+        }
+
+        try {
+            setNextNode(pred, newPresentNode);
+        }
+        finally {
+            if (this.snapshotClock != null) {
+                newPresentNode.lock.unlock();
+            }
+        }
+
+        if (this.membershipIndex != null && this.membershipIndex.covers(presentTagNum)) {
+            this.membershipIndex.add(presentTagNum);
+        }
+        this.numPresents.increment();
+        return newPresentNode;
+    }
+
+    // Tries to insert new present into the chain of presents in its sorted position, searching for this position from the
+    // start node passed in (which must have a larger tag number than the new present). Returns the new present's node
+    // if successful and null if the present was already in the chain
+    private PresentNode insertPresentAfter(final PresentNode start, final int presentTagNum, final int servantId) {
+        // Keep trying to insert present until success or failure, backing off for longer after each failed attempt
+        int numRetries = 0;
+        while (true) {
+            Backoff.afterRetries(numRetries++);
+
+            // Get the first two nodes to search from, going back to the head of the list if the start node has since been removed
+            PresentNode pred = (start.removed) ? this.head : start;
+            PresentNode curr = pred.nextPresentNode;
+            int traversalLength = 0;
+
+            // Keep iterating through the list until the end is reached or until the 
+            // two nodes that the new present should be inserted between are found
+            while (curr != null && presentTagNum < curr.tagNumber) {
+                pred = curr;
+                curr = curr.nextPresentNode;
+                traversalLength++;
+            }
+
+            if (BirthdayPresents.COLLECT_METRICS) {
+                ServantMetrics.current().recordTraversal(traversalLength);
+            }
+
+            lockNode(pred);
+            try {
+                // If at the end of the list, only need the final node to be locked, so insert the new present at the end of the list
                 if (curr == null) {
                     // Make sure last node in list has not been removed and that nothing has been appended to end of list since
                     if (!pred.removed && pred.nextPresentNode == null) {
-                        // Initialize the new present node to point to "null" since it is the new end node of the list
-                        PresentNode newPresentNode = new PresentNode(presentTagNum, null);
+                        // Make the last node in the list now point to a new last node that points to "null"
+                        return linkNewPresent(pred, presentTagNum, null);
+                    }
+                    // Otherwise, try again
+                    else {
+                        recordValidationRetry();
+                        continue;
+                    }
+                }
+
+                lockNode(curr);
+                try {
+                    // Make sure that the two nodes that present is going to be inserted in between are still in the list and connected
+                    if (validate(pred, curr)) {
+                        // Already found present in list but each present should be unique, so don't insert this duplicate present
+                        if (curr.tagNumber == presentTagNum) {
+                            return null;
+                        } 
+                        else {
+                            // Make the predecessor node point to a new present that points to the first node in the list
+                            // that has a larger tag number
+                            return linkNewPresent(pred, presentTagNum, curr);
+                        }
+                    }
+                } 
+                finally {
+                    curr.lock.unlock();
+                }
+            } 
+            finally {
+                pred.lock.unlock();
+            }
+            // Unlock both nodes as needed before returning or before attempting to insert into the list again
+            recordValidationRetry();
+        }
+    }
+
+    // Tries to remove the first present in the chain of presents. Returns the remove present's tag number if successful
+    // and null if not successful
+    @Override
+    public Integer removePresent(final int servantId) {
+        // Keep trying to remove first present until success or failure, backing off for longer after each failed attempt
+        int numRetries = 0;
+        while (true) {
+            Backoff.afterRetries(numRetries++);
+
+            // Get the fixed head node and the first present node in the list
+            PresentNode pred = this.head;
+            PresentNode first = this.head.nextPresentNode;
+
+            // If no first present node is found, then there is no presents to remove from the list
+            if (first == null) {
+                return null;
+            }
+
+            lockNode(pred);
+            try {
+                lockNode(first);
+                try {
+                    // Make sure that the first present node hasn't been removed yet and that this
+                    // present node is still the first present in the list
+                    if (validate(pred, first)) {
+                        // Mark that this present node is now being removed in case another servant/thread
+                        // is still referencing it
+                        first.removed = true;
+                        if (this.membershipIndex != null && this.membershipIndex.covers(first.tagNumber)) {
+                            this.membershipIndex.remove(first.tagNumber);
+                        }
+
+                        // Set fixed head node to point to node right after this present, removing it from the list
+                        setNextNode(pred, first.nextPresentNode);
+                        this.numPresents.decrement();
+                        
+                        return first.tagNumber;
+                    }
+                } 
+                finally {
+                    first.lock.unlock();
+                }
+            } 
+            finally {
+                pred.lock.unlock();
+            }
+            // Unlock both nodes before returning or before attempting to remove the chain's first present again
+            recordValidationRetry();
+        }
+    }
+
+    // Tries to remove one of the first few presents in the chain of presents. The servant picks a random number of presents to
+    // skip (less than the relaxation bound), walks that far down the chain without locking anything, and then locks and validates
+    // the predecessor and the chosen present just like removePresent does for the first present. If the chain is shorter than
+    // the chosen distance, the last present is removed instead. Returns the removed present's tag number if successful and null if not
+    @Override
+    public Integer removePresentRelaxed(final RelaxedRemovalStats relaxedRemovalStats, final int servantId) {
+        // Keep trying to remove a present until success or failure, backing off for longer after each failed attempt
+        int numRetries = 0;
+        while (true) {
+            Backoff.afterRetries(numRetries++);
+
+            int targetRank = ThreadLocalRandom.current().nextInt(relaxedRemovalStats.relaxationBound);
+
+            // Get the fixed head node and the first present node in the list
+            PresentNode pred = this.head;
+            PresentNode curr = this.head.nextPresentNode;
+
+            // If no first present node is found, then there is no presents to remove from the list
+            if (curr == null) {
+                return null;
+            }
+
+            // Skip over the chosen number of presents, stopping early at the last present in the chain
+            int rank = 0;
+            while (rank < targetRank && curr.nextPresentNode != null) {
+                pred = curr;
+                curr = curr.nextPresentNode;
+                rank++;
+            }
+
+            lockNode(pred);
+            try {
+                lockNode(curr);
+                try {
+                    // Make sure that neither node has been removed and that the chosen present still directly follows its predecessor
+                    if (validate(pred, curr)) {
+                        // Mark that this present node is now being removed in case another servant/thread
+                        // is still referencing it
+                        curr.removed = true;
+                        if (this.membershipIndex != null && this.membershipIndex.covers(curr.tagNumber)) {
+                            this.membershipIndex.remove(curr.tagNumber);
+                        }
+
+                        // Set predecessor node to point to node right after this present, removing it from the list
+                        setNextNode(pred, curr.nextPresentNode);
+                        this.numPresents.decrement();
+
+                        relaxedRemovalStats.recordRemoval(rank);
+                        return curr.tagNumber;
+                    }
+                }
+                finally {
+                    curr.lock.unlock();
+                }
+            }
+            finally {
+                pred.lock.unlock();
+            }
+            // Unlock both nodes before returning or before attempting to remove a present again
+            recordValidationRetry();
+        }
+    }
+
+    // Tries to remove up to maxPresents presents from the front of the chain of presents in a single critical section. The head
+    // node and the first present are locked and validated just like in removePresent, and then the following presents are
+    // locked hand-over-hand, so that the whole run can be marked as removed and detached from the head at once.
+    // Returns how many presents were removed and stores their tag numbers in the array passed in
+    @Override
+    public int removePresents(final int[] removedTagNums, final int maxPresents, final int servantId) {
+        PresentNode[] lockedNodes = LOCKED_NODES.get();
+        if (lockedNodes.length < maxPresents) {
+            lockedNodes = new PresentNode[maxPresents];
+            LOCKED_NODES.set(lockedNodes);
+        }
+
+        // Keep trying to remove the first presents until success or failure, backing off for longer after each failed attempt
+        int numRetries = 0;
+        while (true) {
+            Backoff.afterRetries(numRetries++);
+
+            // Get the fixed head node and the first present node in the list
+            PresentNode pred = this.head;
+            PresentNode first = this.head.nextPresentNode;
+
+            // If no first present node is found, then there is no presents to remove from the list
+            if (first == null) {
+                return 0;
+            }
+
+            int numLocked = 0;
+            lockNode(pred);
+            try {
+                lockNode(first);
+                lockedNodes[numLocked++] = first;
+
+                // Make sure that the first present node hasn't been removed yet and that this
+                // present node is still the first present in the list
+                if (validate(pred, first)) {
+                    // Lock the presents following the first one, one after the other. Since each present is only locked after
+                    // its locked predecessor still points to it, no other servant can remove or insert anything within this run
+                    while (numLocked < maxPresents && lockedNodes[numLocked - 1].nextPresentNode != null) {
+                        PresentNode next = lockedNodes[numLocked - 1].nextPresentNode;
+                        lockNode(next);
+                        lockedNodes[numLocked++] = next;
+                    }
+
+                    // Mark that every present node in the run is now being removed in case another servant/thread
+                    // is still referencing it
+                    for (int i = 0; i < numLocked; i++) {
+                        lockedNodes[i].removed = true;
+                        if (this.membershipIndex != null && this.membershipIndex.covers(lockedNodes[i].tagNumber)) {
+                            this.membershipIndex.remove(lockedNodes[i].tagNumber);
+                        }
+                        removedTagNums[i] = lockedNodes[i].tagNumber;
+
+                    }
+
+                    // Set fixed head node to point to node right after the run, removing all of its presents from the list
+                    setNextNode(pred, lockedNodes[numLocked - 1].nextPresentNode);
+                    this.numPresents.add(-numLocked);
+
+                    return numLocked;
+                }
+            }
+            finally {
+                // Clear each slot after unlocking its node, so the buffer doesn't keep removed presents from being collected
+                for (int i = numLocked - 1; i >= 0; i--) {
+                    lockedNodes[i].lock.unlock();
+                    lockedNodes[i] = null;
+                }
+                pred.lock.unlock();
+            }
+            // Unlock all nodes before returning or before attempting to remove the chain's first presents again
+            recordValidationRetry();
+        }
+    }
+
+    // Delete Later
+    // public boolean removePresent(final int presentTagNum) {
+    //     while (true) {
+    //         PresentNode pred = this.head;
+    //         PresentNode curr = head.nextPresentNode;
+
+    //         while (curr != null && curr.tagNumber < presentTagNum) {
+    //             pred = curr;
+    //             curr = curr.nextPresentNode;
+    //         }
+
+    //         if (curr == null) {
+    //             return false;
+    //         }
+
+    //         pred.lock.lock();
+    //         try {
+    //             curr.lock.lock();
+    //             try {
+    //                 if (validate(pred, curr)) {
+    //                     if (curr.tagNumber != presentTagNum) {
+    //                         return false;
+    //                     } 
+    //                     else {
+    //                         curr.removed = true;
+    //                         pred.nextPresentNode = curr.nextPresentNode;
+    //                         return true;
+    //                     }
+    //                 }
+    //             } 
+    //             finally {
+    //                 curr.lock.unlock();
+    //             }
+    //         } 
+    //         finally {
+    //             pred.lock.unlock();
+    //         }
+    //     }
+    // }
+
+    // Checks whether or not present with this tag number is in the chain
+    @Override
+    public boolean containsPresent(final int presentTagNum) {
+        // If the membership index keeps track of this present, then just look up its bit without traversing the chain
+        if (this.membershipIndex != null && this.membershipIndex.covers(presentTagNum)) {
+            return this.membershipIndex.contains(presentTagNum);
+        }
+
+        // Get the first two nodes of the list
+        PresentNode pred = this.head;
+        PresentNode curr = this.head.nextPresentNode;
+        int traversalLength = 0;
+
+        // Keep iterating through the chain until the end is reached or until a 
+        // node with a tag number >= the tag number passed in is found
+        while (curr != null && presentTagNum < curr.tagNumber) {
+            pred = curr;
+            curr = curr.nextPresentNode;
+            traversalLength++;
+        }
+
+        if (BirthdayPresents.COLLECT_METRICS) {
+            ServantMetrics.current().recordTraversal(traversalLength);
+        }
+
+        // If predecessor node is currently being modified/affected by an insertion or deletion into the list, 
+        // then wait until this operation is done to get the most up-to-date results in-case the desired present 
+        // may be in the process of being inserted to or removed from the list
+        if (((ReentrantLock) pred.lock).isLocked()) {
+            lockNode(pred);
+
+            // As long as predecessor was not removed from the list, then update the following target
+            // node to get the most up-to-date results of whether or not the present is in the list
+            if (!pred.removed) {
+                curr = pred.nextPresentNode;
+            }
+
+            pred.lock.unlock();
+        }
+        
+        // Present was found if did not reach the end of the list while searching, and the
+        // target node's tag number is equal to the desired present tag number, and
+        // this target node was not marked as removed since
+        boolean foundPresent = curr != null && curr.tagNumber == presentTagNum && !curr.removed;
+
+        return foundPresent;
+    }
+}
+
+// Snapshot of every present in one or more lazy linked lists that share a snapshot clock, at a single point in time. Iterating over
+// it follows, from each list's head node, each node's newest version of its next pointer that was stamped at or before the
+// snapshot's time. Nodes are never changed in place (only their next pointers, which keep their old versions), so this walks
+// exactly the lists as they were at that time, no matter what the servants have done to them since. Iterating never takes a lock
+// or waits on a servant: each step only skips over the versions of one node that were stamped after the snapshot was taken,
+// stamping any that are not stamped yet itself.
+class PresentsSnapshot implements Iterable<Integer>, AutoCloseable {
+    // Time a snapshot has before it is taken, which keeps every version until then
+    private static final long NOT_TAKEN = Long.MIN_VALUE;
+
+    // Head nodes of the lists in the order that they are walked in
+    private final PresentNode[] heads;
+    private final SnapshotClock snapshotClock;
+    private volatile long snapshotTime;
+
+    public PresentsSnapshot(final PresentNode[] heads, final SnapshotClock snapshotClock) {
+        this.heads = heads;
+        this.snapshotClock = snapshotClock;
+        this.snapshotTime = NOT_TAKEN;
+    }
+
+    public long getSnapshotTime() {
+        return this.snapshotTime;
+    }
+
+    void setSnapshotTime(final long snapshotTime) {
+        this.snapshotTime = snapshotTime;
+    }
+
+    // Iterates over the tag numbers of the presents in the snapshot, in the order of the chain (largest first)
+    @Override
+    public Iterator<Integer> iterator() {
+        return new Iterator<Integer>() {
+            private int headIndex = -1;
+            private PresentNode nextNode = nextNodeAfter(null);
+
+            // Returns the node after this one at the snapshot's time, moving on to the next list whenever one runs out
+            private PresentNode nextNodeAfter(final PresentNode node) {
+                PresentNode nextNode = (node == null) ? null
+                    : NextPresentVersion.getNextNodeAt(node, PresentsSnapshot.this.snapshotTime, PresentsSnapshot.this.snapshotClock);
+                while (nextNode == null && this.headIndex + 1 < PresentsSnapshot.this.heads.length) {
+                    this.headIndex++;
+                    nextNode = NextPresentVersion.getNextNodeAt(PresentsSnapshot.this.heads[this.headIndex], PresentsSnapshot.this.snapshotTime,
+                        PresentsSnapshot.this.snapshotClock);
+                }
+                return nextNode;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return this.nextNode != null;
+            }
+
+            @Override
+            public Integer next() {
+                if (this.nextNode == null) {
+                    throw new NoSuchElementException();
+                }
+
+                int tagNumber = this.nextNode.tagNumber;
+                this.nextNode = nextNodeAfter(this.nextNode);
+                return tagNumber;
+            }
+        };
+    }
+
+    // Returns the exact number of presents in the snapshot, by walking all of it
+    public long size() {
+        long size = 0;
+        for (Iterator<Integer> presents = iterator(); presents.hasNext(); presents.next()) {
+            size++;
+        }
+        return size;
+    }
+
+    // Lets the servants throw away the versions that only this snapshot still needed
+    @Override
+    public void close() {
+        this.snapshotClock.close(this);
+    }
+}
+
+// Takes a snapshot of the chain every so often while the servants are working and checks that every present in it is in order
+// and only in it once, to show that monitoring can run against the chain under full load without holding the servants up
+class ChainAuditor extends Thread {
+    private final SnapshotPresentsChain presentsChain;
+    private final long intervalMillis;
+    private volatile boolean stopRunning;
+
+    private long numSnapshots;
+    private long numOutOfOrder;
+    private long largestSnapshotSize;
+    private long totalPresents;
+    private long totalSnapshotNanos;
+    private long maxSnapshotNanos;
+
+    public ChainAuditor(final SnapshotPresentsChain presentsChain, final long intervalMillis) {
+        this.presentsChain = presentsChain;
+        this.intervalMillis = intervalMillis;
+        this.setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        while (!this.stopRunning) {
+            try {
+                Thread.sleep(this.intervalMillis);
+            }
+            catch (InterruptedException e) {
+                break;
+            }
+
+            audit();
+        }
+    }
+
+    // Walks one snapshot of the chain, which must be in strictly descending order of tag numbers
+    private void audit() {
+        long startTime = System.nanoTime();
+        long size = 0;
+        boolean inOrder = true;
+
+        try (PresentsSnapshot snapshot = this.presentsChain.snapshot()) {
+            int prevTagNum = Integer.MAX_VALUE;
+            for (int tagNum : snapshot) {
+                inOrder &= tagNum < prevTagNum;
+                prevTagNum = tagNum;
+                size++;
+            }
+        }
+
+        long snapshotNanos = System.nanoTime() - startTime;
+        this.numSnapshots++;
+        this.numOutOfOrder += (inOrder) ? 0 : 1;
+        this.largestSnapshotSize = Math.max(this.largestSnapshotSize, size);
+        this.totalPresents += size;
+        this.totalSnapshotNanos += snapshotNanos;
+        this.maxSnapshotNanos = Math.max(this.maxSnapshotNanos, snapshotNanos);
+    }
+
+    // Stops auditing and waits until the auditor has finished its last snapshot
+    public void finish() throws InterruptedException {
+        this.stopRunning = true;
+        this.interrupt();
+        this.join();
+    }
+
+    public void printReport() {
+        System.out.printf("Audited %d snapshots of the chain while the servants worked (%d out of order), with %.1f presents on average "
+            + "and at most %d, taking %.3fms on average and at most %.3fms%n", this.numSnapshots, this.numOutOfOrder,
+            (this.numSnapshots == 0) ? 0.0 : (double) this.totalPresents / this.numSnapshots, this.largestSnapshotSize,
+            (this.numSnapshots == 0) ? 0.0 : this.totalSnapshotNanos / 1e6 / this.numSnapshots, this.maxSnapshotNanos / 1e6);
+    }
+}
+
+// Node class for each present in the skip list version of the sorted chain. Each node is linked into every level
+// from the bottom level up to its randomly chosen top level. Besides the removed flag, each node also has a fully linked
+// flag to let other threads know when the node has been linked into all of its levels and is logically part of the chain.
+class SkipPresentNode {
+    public final int tagNumber;
+    public final SkipPresentNode[] nextPresentNodes;
+    public final int topLevel;
+    public volatile boolean removed;
+    public volatile boolean fullyLinked;
+    public final Lock lock;
+
+    public SkipPresentNode(final int tagNumber, final int topLevel) {
+        this.tagNumber = tagNumber;
+        this.nextPresentNodes = new SkipPresentNode[topLevel + 1];
+        this.topLevel = topLevel;
+        this.removed = false;
+        this.fullyLinked = false;
+        this.lock = new ReentrantLock();
+    }
+}
+
+// This lazy skip list implementation was heavily inspired by the implementation that can be found
+// in section 14.3 of the text book ("The Art of Multiprocessor Programming"). It keeps the presents in the same
+// descending order as the lazy linked list, but each node is also linked into a random number of express levels
+// above the bottom level, so inserting, removing, and searching only take O(log n) steps instead of O(n).
+class LazySkipList implements PresentsChain {
+    // Maximum number of levels in the skip list (2^24 is well beyond the number of presents that are ever in the chain)
+    private static final int MAX_LEVEL = 24;
+
+    // Impossible present tag numbers that can be used for the fixed head and tail nodes of the list. Since the chain
+    // is sorted in descending order, the head must be larger and the tail must be smaller than any real present.
+    private static final int HEAD_LIST_TAG_NUM = Integer.MAX_VALUE;
+    private static final int TAIL_LIST_TAG_NUM = Integer.MIN_VALUE;
+
+    private final SkipPresentNode head;
+    private final SkipPresentNode tail;
+
+    // Optional bitset of the presents currently in the chain (null if searches should traverse the chain instead)
+    private final PresentsMembershipIndex membershipIndex;
+
+    // Number of presents in the chain, updated after every successful insertion and removal
+    private final LongAdder numPresents;
+
+    public LazySkipList() {
+        this(null);
+    }
+
+    public LazySkipList(final PresentsMembershipIndex membershipIndex) {
+        this.membershipIndex = membershipIndex;
+        this.numPresents = new LongAdder();
+
+        // Initialize fixed head and tail nodes that span every level, and link the head directly to the tail at each level
+        this.head = new SkipPresentNode(HEAD_LIST_TAG_NUM, MAX_LEVEL - 1);
+        this.tail = new SkipPresentNode(TAIL_LIST_TAG_NUM, MAX_LEVEL - 1);
+        for (int level = 0; level < MAX_LEVEL; level++) {
+            this.head.nextPresentNodes[level] = this.tail;
+        }
+        this.head.fullyLinked = true;
+        this.tail.fullyLinked = true;
+    }
+
+    // Chooses a random top level for a new node, where each level is half as likely to be chosen as the level below it
+    private static int randomLevel() {
+        return Integer.numberOfTrailingZeros(ThreadLocalRandom.current().nextInt() | (1 << (MAX_LEVEL - 1)));
+    }
+
+    // Checks whether or not current and predecessor node have been removed or if the connection
+    // between these two nodes at this level has been broken to ensure validity of this piece of the list
+    private boolean validate(SkipPresentNode pred, SkipPresentNode curr, int level) {
+        return !pred.removed && !curr.removed && pred.nextPresentNodes[level] == curr;
+    }
+
+    // Fills in the predecessor and successor nodes of this tag number at every level of the list and returns the
+    // highest level that a node with this tag number was found at (-1 if no node with this tag number was found)
+    private int findNode(final int presentTagNum, final SkipPresentNode[] preds, final SkipPresentNode[] succs) {
+        int levelFound = -1;
+        SkipPresentNode pred = this.head;
+
+        for (int level = MAX_LEVEL - 1; level >= 0; level--) {
+            SkipPresentNode curr = pred.nextPresentNodes[level];
+
+            // Keep iterating through this level until a node with a tag number <= the tag number passed in is found
+            // (the tail node always stops the search since it has the smallest possible tag number)
+            while (presentTagNum < curr.tagNumber) {
+                pred = curr;
+                curr = pred.nextPresentNodes[level];
+            }
+
+            if (levelFound == -1 && presentTagNum == curr.tagNumber) {
+                levelFound = level;
+            }
+
+            preds[level] = pred;
+            succs[level] = curr;
+        }
+
+        return levelFound;
+    }
+
+    // Returns whether or not list is empty based on whether or not any present nodes follow the fixed head node
+    @Override
+    public boolean isEmpty() {
+        return this.head.nextPresentNodes[0] == this.tail;
+    }
+
+    @Override
+    public long size() {
+        return this.numPresents.sum();
+    }
+
+    // Tries to insert new present into the chain of presents in its sorted position and returns whether or not it was successful
+    @Override
+    public boolean insertPresent(final int presentTagNum, final int servantId) {
+        int topLevel = randomLevel();
+        SkipPresentNode[] preds = new SkipPresentNode[MAX_LEVEL];
+        SkipPresentNode[] succs = new SkipPresentNode[MAX_LEVEL];
+
+        // Keep trying to insert present until success or failure, backing off for longer after each failed attempt
+        int numRetries = 0;
+        while (true) {
+            Backoff.afterRetries(numRetries++);
+
+            int levelFound = findNode(presentTagNum, preds, succs);
+
+            // Already found present in list but each present should be unique, so don't insert this duplicate present
+            if (levelFound != -1) {
+                SkipPresentNode nodeFound = succs[levelFound];
+
+                // If the duplicate is being removed right now, then try again once it is gone
+                if (!nodeFound.removed) {
+                    // Wait until the duplicate is linked into the list, so that it can be seen by other servants before failing
+                    while (!nodeFound.fullyLinked) {
+                        Thread.onSpinWait();
+                    }
+
+                    return false;
+                }
+                continue;
+            }
+
+            int highestLocked = -1;
+            try {
+                // Lock the predecessor node at each level the new node will be linked into and make sure that
+                // each predecessor and successor are still in the list and connected
+                boolean valid = true;
+                for (int level = 0; valid && level <= topLevel; level++) {
+                    preds[level].lock.lock();
+                    highestLocked = level;
+                    valid = validate(preds[level], succs[level], level);
+                }
+
+                // Otherwise, try again
+                if (!valid) {
+                    continue;
+                }
+
+                // Initialize the new present node to point to the successors at each level, then make the predecessors point to it
+                SkipPresentNode newPresentNode = new SkipPresentNode(presentTagNum, topLevel);
+                for (int level = 0; level <= topLevel; level++) {
+                    newPresentNode.nextPresentNodes[level] = succs[level];
+                }
+                for (int level = 0; level <= topLevel; level++) {
+                    preds[level].nextPresentNodes[level] = newPresentNode;
+                }
+
+                // The new present is now logically part of the chain, so record it in the membership index while its predecessors are still locked
+                newPresentNode.fullyLinked = true;
+                if (this.membershipIndex != null && this.membershipIndex.covers(presentTagNum)) {
+                    this.membershipIndex.add(presentTagNum);
+                }
+                this.numPresents.increment();
+
+                return true;
+            }
+            finally {
+                // Unlock all the locked predecessor nodes before returning or before attempting to insert into the list again
+                for (int level = 0; level <= highestLocked; level++) {
+                    preds[level].lock.unlock();
+                }
+            }
+        }
+    }
+
+    // Tries to remove the first present in the chain of presents. Returns the removed present's tag number if successful
+    // and null if not successful
+    @Override
+    public Integer removePresent(final int servantId) {
+        // Keep trying to remove first present until success or failure
+        while (true) {
+            // Find the first present node in the bottom level of the list that is fully linked and hasn't been removed yet
+            SkipPresentNode first = this.head.nextPresentNodes[0];
+            while (first != this.tail && (first.removed || !first.fullyLinked)) {
+                first = first.nextPresentNodes[0];
+            }
+
+            // If no first present node is found, then there is no presents to remove from the list
+            if (first == this.tail) {
+                return null;
+            }
+
+            if (removeNode(first)) {
+                return first.tagNumber;
+            }
+            // Another servant/thread must have removed this present first, so try again
+        }
+    }
+
+    // Tries to remove one of the first few presents in the chain of presents by skipping a random number of presents (less than
+    // the relaxation bound) in the bottom level of the list, stopping early at the last present. Returns the removed present's
+    // tag number if successful and null if not successful
+    @Override
+    public Integer removePresentRelaxed(final RelaxedRemovalStats relaxedRemovalStats, final int servantId) {
+        // Keep trying to remove a present until success or failure
+        while (true) {
+            int targetRank = ThreadLocalRandom.current().nextInt(relaxedRemovalStats.relaxationBound);
+            int rank = 0;
+            SkipPresentNode victim = this.tail;
+
+            // Walk through the bottom level of the list, only counting presents that are fully linked and haven't been removed yet
+            for (SkipPresentNode curr = this.head.nextPresentNodes[0]; curr != this.tail; curr = curr.nextPresentNodes[0]) {
+                if (curr.removed || !curr.fullyLinked) {
+                    continue;
+                }
+
+                if (victim != this.tail) {
+                    rank++;
+                }
+                victim = curr;
+
+                if (rank == targetRank) {
+                    break;
+                }
+            }
+
+            // If no present node is found, then there is no presents to remove from the list
+            if (victim == this.tail) {
+                return null;
+            }
+
+            if (removeNode(victim)) {
+                relaxedRemovalStats.recordRemoval(rank);
+                return victim.tagNumber;
+            }
+            // Another servant/thread must have removed this present first, so try again
+        }
+    }
+
+    // Tries to logically remove this node from the list and then unlink it from every level. Returns false if
+    // another servant/thread already marked this node as removed
+    private boolean removeNode(final SkipPresentNode victim) {
+        SkipPresentNode[] preds = new SkipPresentNode[MAX_LEVEL];
+        SkipPresentNode[] succs = new SkipPresentNode[MAX_LEVEL];
+
+        victim.lock.lock();
+        try {
+            if (victim.removed) {
+                return false;
+            }
+
+            // Mark that this present node is now being removed in case another servant/thread is still referencing it
+            victim.removed = true;
+            if (this.membershipIndex != null && this.membershipIndex.covers(victim.tagNumber)) {
+                this.membershipIndex.remove(victim.tagNumber);
+            }
+            this.numPresents.decrement();
+
+            // Keep trying to unlink the node until all of its predecessors are locked and still point to it
+            while (true) {
+                findNode(victim.tagNumber, preds, succs);
+
+                int highestLocked = -1;
+                try {
+                    boolean valid = true;
+                    for (int level = 0; valid && level <= victim.topLevel; level++) {
+                        preds[level].lock.lock();
+                        highestLocked = level;
+                        valid = !preds[level].removed && preds[level].nextPresentNodes[level] == victim;
+                    }
+
+                    if (!valid) {
+                        continue;
+                    }
+
+                    // Set each predecessor to point to the node right after this present, removing it from the list
+                    for (int level = victim.topLevel; level >= 0; level--) {
+                        preds[level].nextPresentNodes[level] = victim.nextPresentNodes[level];
+                    }
+                    return true;
+                }
+                finally {
+                    for (int level = 0; level <= highestLocked; level++) {
+                        preds[level].lock.unlock();
+                    }
+                }
+            }
+        }
+        finally {
+            victim.lock.unlock();
+        }
+    }
+
+    // Checks whether or not present with this tag number is in the chain
+    @Override
+    public boolean containsPresent(final int presentTagNum) {
+        // If the membership index keeps track of this present, then just look up its bit without traversing the chain
+        if (this.membershipIndex != null && this.membershipIndex.covers(presentTagNum)) {
+            return this.membershipIndex.contains(presentTagNum);
+        }
+
+        SkipPresentNode pred = this.head;
+        SkipPresentNode curr = null;
+
+        // Descend through the levels of the list without locking anything until reaching the bottom level
+        for (int level = MAX_LEVEL - 1; level >= 0; level--) {
+            curr = pred.nextPresentNodes[level];
+            while (presentTagNum < curr.tagNumber) {
+                pred = curr;
+                curr = pred.nextPresentNodes[level];
+            }
+
+            if (presentTagNum == curr.tagNumber) {
+                break;
+            }
+        }
+
+        // Present was found if the target node's tag number is equal to the desired present tag number, and
+        // this target node has been fully linked into the list and was not marked as removed since
+        return curr.tagNumber == presentTagNum && curr.fullyLinked && !curr.removed;
+    }
+}
+
+// Node class for each present in the lock-free version of the sorted chain. Instead of a lock and a separate removed flag,
+// each node's next reference is paired with a mark bit that is set when the node is logically removed from the chain, so
+// that both can be read and changed together in a single compare-and-set.
+class LockFreePresentNode {
+    public final int tagNumber;
+    public final AtomicMarkableReference<LockFreePresentNode> nextPresentNode;
+
+    public LockFreePresentNode(final int tagNumber, final LockFreePresentNode nextPresentNode) {
+        this.tagNumber = tagNumber;
+        this.nextPresentNode = new AtomicMarkableReference<>(nextPresentNode, false);
+    }
+}
+
+// This lock-free list implementation was heavily inspired by the implementation that can be found
+// in section 9.8 of the text book ("The Art of Multiprocessor Programming"), which is based on the lists of Harris and Michael.
+// No servant ever blocks on a lock: presents are removed by first marking their next reference and then swinging
+// the predecessor past them, and any servant traversing the chain helps unlink marked nodes that it comes across.
+class LockFreeLinkedList implements PresentsChain {
+    // Impossible present tag numbers that can be used for the fixed head and tail nodes of the list. Since the chain
+    // is sorted in descending order, the head must be larger and the tail must be smaller than any real present.
+    private static final int HEAD_LIST_TAG_NUM = Integer.MAX_VALUE;
+    private static final int TAIL_LIST_TAG_NUM = Integer.MIN_VALUE;
+
+    private final LockFreePresentNode head;
+    private final LockFreePresentNode tail;
+
+    // Optional bitset of the presents currently in the chain (null if searches should traverse the chain instead)
+    private final PresentsMembershipIndex membershipIndex;
+
+    // Number of presents in the chain, updated after every successful insertion and removal
+    private final LongAdder numPresents;
+
+    public LockFreeLinkedList() {
+        this(null);
+    }
+
+    public LockFreeLinkedList(final PresentsMembershipIndex membershipIndex) {
+        // Initialize fixed head and tail nodes with the head always pointing to the first present node (or tail if empty)
+        this.tail = new LockFreePresentNode(TAIL_LIST_TAG_NUM, null);
+        this.head = new LockFreePresentNode(HEAD_LIST_TAG_NUM, this.tail);
+        this.membershipIndex = membershipIndex;
+        this.numPresents = new LongAdder();
+    }
+
+    // Pair of adjacent nodes in the list returned by the find method
+    private static class Window {
+        public final LockFreePresentNode pred;
+        public final LockFreePresentNode curr;
+
+        public Window(final LockFreePresentNode pred, final LockFreePresentNode curr) {
+            this.pred = pred;
+            this.curr = curr;
+        }
+    }
+
+    // Returns the first unmarked node with a tag number <= the tag number passed in along with its predecessor. Any marked
+    // nodes found along the way are physically unlinked from the list, and the search starts over whenever that fails
+    private Window find(final int presentTagNum) {
+        boolean[] marked = {false};
+
+        retry:
+        while (true) {
+            LockFreePresentNode pred = this.head;
+            LockFreePresentNode curr = pred.nextPresentNode.getReference();
+
+            while (true) {
+                LockFreePresentNode succ = curr.nextPresentNode.get(marked);
+
+                // Help unlink every logically removed node that directly follows the predecessor
+                while (marked[0]) {
+                    if (!pred.nextPresentNode.compareAndSet(curr, succ, false, false)) {
+                        continue retry;
+                    }
+                    curr = succ;
+                    succ = curr.nextPresentNode.get(marked);
+                }
+
+                // The tail node always stops the search since it has the smallest possible tag number
+                if (curr.tagNumber <= presentTagNum) {
+                    return new Window(pred, curr);
+                }
+
+                pred = curr;
+                curr = succ;
+            }
+        }
+    }
+
+    // Returns whether or not list is empty based on whether or not any present nodes follow the fixed head node
+    @Override
+    public boolean isEmpty() {
+        return this.head.nextPresentNode.getReference() == this.tail;
+    }
+
+    @Override
+    public long size() {
+        return this.numPresents.sum();
+    }
+
+    // Tries to insert new present into the chain of presents in its sorted position and returns whether or not it was successful
+    @Override
+    public boolean insertPresent(final int presentTagNum, final int servantId) {
+        // Keep trying to insert present until success or failure
+        while (true) {
+            Window window = find(presentTagNum);
 
-                        // If print flag is turned on, print that the present was successfully inserted
-                        if (BirthdayPresents.PRINT_STEPS) {
-                            System.out.println("Servant " + servantId + " successfully added present #" + presentTagNum + " to the ordered chain of presents.");
-                        }
+            // Already found present in list but each present should be unique, so don't insert this duplicate present
+            if (window.curr.tagNumber == presentTagNum) {
+                return false;
+            }
+
+            // Initialize the new present node to point to the first node in the list that has a smaller tag number and
+            // only link it in if the predecessor is still unmarked and still points to that node
+            LockFreePresentNode newPresentNode = new LockFreePresentNode(presentTagNum, window.curr);
+            if (window.pred.nextPresentNode.compareAndSet(window.curr, newPresentNode, false, false)) {
+                this.numPresents.increment();
+
+                // Record the present in the membership index. Another servant may have already removed the new present before
+                // its bit was set, so check the mark afterwards and clear the bit again in that case (whichever of the two servants
+                // clears the bit last, it is never left set for a removed present). Since neither the bit nor the clear belongs to
+                // one particular node, this assumes that each tag number is only ever inserted once, like the presents from the
+                // bag are: if the same tag number could be inserted again right after it was removed, a late clear by either
+                // servant would wipe out the bit of the new present
+                if (this.membershipIndex != null && this.membershipIndex.covers(presentTagNum)) {
+                    this.membershipIndex.add(presentTagNum);
+                    if (newPresentNode.nextPresentNode.isMarked()) {
+                        this.membershipIndex.remove(presentTagNum);
+                    }
+                }
+
+                return true;
+            }
+            // Otherwise, try again
+        }
+    }
+
+    // Tries to remove the first present in the chain of presents. Returns the removed present's tag number if successful
+    // and null if not successful
+    @Override
+    public Integer removePresent(final int servantId) {
+        // Keep trying to remove first present until success or failure
+        while (true) {
+            // Every present has a smaller tag number than the head, so this finds the first unmarked present node
+            Window window = find(HEAD_LIST_TAG_NUM);
+            LockFreePresentNode first = window.curr;
+
+            // If no first present node is found, then there is no presents to remove from the list
+            if (first == this.tail) {
+                return null;
+            }
+
+            // Logically remove the present by marking its next reference. This fails if another servant/thread removed it
+            // first or inserted a present right after it, so try again in that case
+            LockFreePresentNode succ = first.nextPresentNode.getReference();
+            if (!first.nextPresentNode.compareAndSet(succ, succ, false, true)) {
+                continue;
+            }
+            this.numPresents.decrement();
+            if (this.membershipIndex != null && this.membershipIndex.covers(first.tagNumber)) {
+                this.membershipIndex.remove(first.tagNumber);
+            }
+
+            // Try to physically unlink the present once. If this fails, a later traversal will unlink it instead
+            window.pred.nextPresentNode.compareAndSet(first, succ, false, false);
+
+            return first.tagNumber;
+        }
+    }
+
+    // Tries to remove one of the first few presents in the chain of presents by skipping a random number of unmarked presents
+    // (less than the relaxation bound), stopping early at the last present. Returns the removed present's tag number if
+    // successful and null if not successful
+    @Override
+    public Integer removePresentRelaxed(final RelaxedRemovalStats relaxedRemovalStats, final int servantId) {
+        // Keep trying to remove a present until success or failure
+        while (true) {
+            int targetRank = ThreadLocalRandom.current().nextInt(relaxedRemovalStats.relaxationBound);
+
+            // Every present has a smaller tag number than the head, so this finds the first unmarked present node
+            Window window = find(HEAD_LIST_TAG_NUM);
+            LockFreePresentNode victim = window.curr;
+
+            // If no first present node is found, then there is no presents to remove from the list
+            if (victim == this.tail) {
+                return null;
+            }
+
+            // Skip over the chosen number of unmarked presents, stopping early at the last present in the chain
+            int rank = 0;
+            for (LockFreePresentNode curr = victim.nextPresentNode.getReference(); rank < targetRank && curr != this.tail;
+                    curr = curr.nextPresentNode.getReference()) {
+                if (!curr.nextPresentNode.isMarked()) {
+                    victim = curr;
+                    rank++;
+                }
+            }
+
+            // Logically remove the present by marking its next reference. A later traversal will physically unlink it
+            LockFreePresentNode succ = victim.nextPresentNode.getReference();
+            if (!victim.nextPresentNode.compareAndSet(succ, succ, false, true)) {
+                continue;
+            }
+            this.numPresents.decrement();
+            if (this.membershipIndex != null && this.membershipIndex.covers(victim.tagNumber)) {
+                this.membershipIndex.remove(victim.tagNumber);
+            }
+
+            relaxedRemovalStats.recordRemoval(rank);
+            return victim.tagNumber;
+        }
+    }
+
+    // Checks whether or not present with this tag number is in the chain without modifying or waiting on anything
+    @Override
+    public boolean containsPresent(final int presentTagNum) {
+        // If the membership index keeps track of this present, then just look up its bit without traversing the chain
+        if (this.membershipIndex != null && this.membershipIndex.covers(presentTagNum)) {
+            return this.membershipIndex.contains(presentTagNum);
+        }
+
+        LockFreePresentNode curr = this.head;
+
+        // Keep iterating through the chain until a node with a tag number <= the tag number passed in is found
+        while (presentTagNum < curr.tagNumber) {
+            curr = curr.nextPresentNode.getReference();
+        }
+
+        // Present was found if the target node's tag number is equal to the desired present tag number, and
+        // this target node was not marked as removed since
+        return curr.tagNumber == presentTagNum && !curr.nextPresentNode.isMarked();
+    }
+}
+
+// Lazy linked list version of the ordered chain of presents where the nodes live in preallocated primitive arrays instead
+// of being separate objects. Each node is just an index into these arrays (holding its tag number, the index of the next node,
+// a state word, and the index of the next free slot), so a present only takes about 16 bytes instead of a whole PresentNode object plus its own ReentrantLock,
+// and walking the chain reads through a few compact arrays. The per-node locks are replaced by a fixed array of striped locks,
+// and the slots of removed presents are put on a free-list so that they can be reused by later insertions.
+//
+// Since a slot can be reused while a slow servant still holds onto its old index, each state word stores a generation
+// number that is increased every time the slot is reused, along with the removed flag in its lowest bit. The validate step
+// compares the state words seen while searching with the current ones, so a reused slot is treated just like a removed node.
+class ArrayLazyList implements PresentsChain {
+    // Index of the fixed head node, which always stays at the front of the list, and the index used for "no next node"
+    private static final int HEAD_INDEX = 0;
+    private static final int NIL_INDEX = -1;
+
+    // Lowest bit of a node's state word is the removed flag and the rest of the word is the slot's generation number
+    private static final int REMOVED_BIT = 1;
+    private static final int GENERATION_INCREMENT = 2;
+
+    // Number of striped locks shared by all the nodes (must be a power of 2)
+    private static final int NUM_LOCK_STRIPES = 1024;
+
+    private final int[] tagNums;
+    private final AtomicIntegerArray nextIndices;
+    private final AtomicIntegerArray states;
+    private final ReentrantLock[] lockStripes;
+
+    // Free-list of reusable slots, linked together through the freeNextIndices array. The head of the free-list is packed
+    // together with a counter that changes on every update, so that popping a slot can never succeed on a stale head
+    private final int[] freeNextIndices;
+    private final AtomicLong freeListHead;
+    private final AtomicInteger numUsedSlots;
+
+    // Optional bitset of the presents currently in the chain (null if searches should traverse the chain instead)
+    private final PresentsMembershipIndex membershipIndex;
+
+    // Number of presents in the chain, updated after every successful insertion and removal
+    private final LongAdder numPresents;
+
+    public ArrayLazyList(final int capacity) {
+        this(capacity, null);
+    }
 
-                        // Make the last node in the list now point to this new last node
-                        pred.nextPresentNode = newPresentNode;
+    public ArrayLazyList(final int capacity, final PresentsMembershipIndex membershipIndex) {
+        this.membershipIndex = membershipIndex;
+        this.numPresents = new LongAdder();
+
+        // Allocate one extra slot for the fixed head node
+        this.tagNums = new int[capacity + 1];
+        this.nextIndices = new AtomicIntegerArray(capacity + 1);
+        this.states = new AtomicIntegerArray(capacity + 1);
+        this.freeNextIndices = new int[capacity + 1];
+        this.freeListHead = new AtomicLong(packFreeListHead(NIL_INDEX, 0));
+        this.numUsedSlots = new AtomicInteger(1);
+
+        this.lockStripes = new ReentrantLock[NUM_LOCK_STRIPES];
+        for (int i = 0; i < NUM_LOCK_STRIPES; i++) {
+            this.lockStripes[i] = new ReentrantLock();
+        }
+
+        // Initialize head of list to empty present node that will always be fixed at the front of the list
+        this.tagNums[HEAD_INDEX] = -1;
+        this.nextIndices.set(HEAD_INDEX, NIL_INDEX);
+    }
+
+    private static long packFreeListHead(final int index, final int counter) {
+        return ((long) counter << 32) | (index & 0xFFFFFFFFL);
+    }
+
+    // Takes a slot off of the free-list, or a never used slot if the free-list is empty. The slot keeps its old state word (with the
+    // removed flag set if it was used before) until the new present has been written into it
+    private int allocateSlot() {
+        int slot;
+        while (true) {
+            long head = this.freeListHead.get();
+            slot = (int) head;
+
+            if (slot == NIL_INDEX) {
+                slot = this.numUsedSlots.getAndIncrement();
+                if (slot >= this.tagNums.length) {
+                    throw new IllegalStateException("Node pool is full: all " + (this.tagNums.length - 1) + " slots are in use");
+                }
+                break;
+            }
+
+            if (this.freeListHead.compareAndSet(head, packFreeListHead(this.freeNextIndices[slot], (int) (head >>> 32) + 1))) {
+                break;
+            }
+        }
+
+        return slot;
+    }
+
+    // Puts the slot of a removed present back onto the free-list
+    private void freeSlot(final int slot) {
+        while (true) {
+            long head = this.freeListHead.get();
+            this.freeNextIndices[slot] = (int) head;
+
+            if (this.freeListHead.compareAndSet(head, packFreeListHead(slot, (int) (head >>> 32) + 1))) {
+                return;
+            }
+        }
+    }
+
+    // Locks the lock stripes of both nodes, always locking the lower stripe first so that two servants can never
+    // deadlock by waiting on each other's stripes (both nodes may also share the same stripe)
+    private void lockNodes(final int pred, final int curr) {
+        int predStripe = pred & (NUM_LOCK_STRIPES - 1);
+        int currStripe = curr & (NUM_LOCK_STRIPES - 1);
+
+        this.lockStripes[Math.min(predStripe, currStripe)].lock();
+        if (predStripe != currStripe) {
+            this.lockStripes[Math.max(predStripe, currStripe)].lock();
+        }
+    }
+
+    private void unlockNodes(final int pred, final int curr) {
+        int predStripe = pred & (NUM_LOCK_STRIPES - 1);
+        int currStripe = curr & (NUM_LOCK_STRIPES - 1);
+
+        if (predStripe != currStripe) {
+            this.lockStripes[Math.max(predStripe, currStripe)].unlock();
+        }
+        this.lockStripes[Math.min(predStripe, currStripe)].unlock();
+    }
+
+    // Checks whether or not current and predecessor node have been removed (or their slots reused) since their state words were
+    // read, or if the connection between these two nodes have been broken to ensure validity of this piece of the list
+    private boolean validate(final int pred, final int predState, final int curr, final int currState) {
+        return (predState & REMOVED_BIT) == 0 && (currState & REMOVED_BIT) == 0
+            && this.states.get(pred) == predState && this.states.get(curr) == currState
+            && this.nextIndices.get(pred) == curr;
+    }
+
+    // Returns whether or not list is empty based on whether or not any present nodes follow the fixed head node
+    @Override
+    public boolean isEmpty() {
+        return this.nextIndices.get(HEAD_INDEX) == NIL_INDEX;
+    }
+
+    @Override
+    public long size() {
+        return this.numPresents.sum();
+    }
+
+    // Tries to insert new present into the chain of presents in its sorted position and returns whether or not it was successful
+    @Override
+    public boolean insertPresent(final int presentTagNum, final int servantId) {
+        // Keep trying to insert present until success or failure, backing off for longer after each failed attempt
+        int numRetries = 0;
+        retry:
+        while (true) {
+            Backoff.afterRetries(numRetries++);
+
+            // Get the first two nodes of the list
+            int pred = HEAD_INDEX;
+            int predState = this.states.get(HEAD_INDEX);
+            int predTagNum = Integer.MAX_VALUE;
+            int curr = this.nextIndices.get(HEAD_INDEX);
+            int currState = 0;
+            int currTagNum = 0;
+
+            // Keep iterating through the list until the end is reached or until the
+            // two nodes that the new present should be inserted between are found
+            while (curr != NIL_INDEX) {
+                currState = this.states.get(curr);
+                currTagNum = this.tagNums[curr];
+
+                // Tag numbers only increase along the list if a slot was reused while passing through it, so start over
+                if (currTagNum >= predTagNum) {
+                    continue retry;
+                }
+                if (presentTagNum >= currTagNum) {
+                    break;
+                }
+
+                pred = curr;
+                predState = currState;
+                predTagNum = currTagNum;
+                curr = this.nextIndices.get(curr);
+            }
+
+            // If at the end of the list, only need the final node to be locked, so insert the new present at the end of the list
+            if (curr == NIL_INDEX) {
+                lockNodes(pred, pred);
+                try {
+                    // Make sure last node in list has not been removed and that nothing has been appended to end of list since
+                    if ((predState & REMOVED_BIT) == 0 && this.states.get(pred) == predState && this.nextIndices.get(pred) == NIL_INDEX) {
+                        linkNewPresent(pred, NIL_INDEX, presentTagNum, servantId);
                         return true;
                     }
-                    // Otherwise, try again
-                    else {
-                        continue;
+                }
+                finally {
+                    unlockNodes(pred, pred);
+                }
+                // Otherwise, try again
+                continue;
+            }
+
+            lockNodes(pred, curr);
+            try {
+                // Make sure that the two nodes that present is going to be inserted in between are still in the list and connected
+                if (validate(pred, predState, curr, currState)) {
+                    // Already found present in list but each present should be unique, so don't insert this duplicate present
+                    if (currTagNum == presentTagNum) {
+                        return false;
                     }
+
+                    linkNewPresent(pred, curr, presentTagNum, servantId);
+                    return true;
                 }
+            }
+            finally {
+                unlockNodes(pred, curr);
+            }
+            // Unlock both nodes as needed before returning or before attempting to insert into the list again
+        }
+    }
 
-                curr.lock.lock();
-                try {
-                    // Make sure that the two nodes that present is going to be inserted in between are still in the list and connected
-                    if (validate(pred, curr)) {
-                        // Already found present in list but each present should be unique, so don't insert this duplicate present
-                        if (curr.tagNumber == presentTagNum) {
-                            // If print flag is turned on, print that the present failed to be inserted
-                            if (BirthdayPresents.PRINT_STEPS) {
-                                System.out.println("Servant " + servantId + " failed to add present #" + presentTagNum + " to the ordered chain of presents.");
-                            }
-                            return false;
-                        } 
-                        else {
-                            // Initialize the new present node to point to the first node in the list that has a larger tag number
-                            PresentNode newPresentNode = new PresentNode(presentTagNum, curr);
+    // Fills in a new slot for the present that points to the current node and then makes the (locked) predecessor node point to it
+    private void linkNewPresent(final int pred, final int curr, final int presentTagNum, final int servantId) {
+        int newSlot = allocateSlot();
+        this.tagNums[newSlot] = presentTagNum;
+        this.nextIndices.set(newSlot, curr);
+
+        // Start the slot's new generation only after its tag number and next index are written. Traversals read a slot's state
+        // before its tag number, so any traversal that sees the new generation also sees the new tag number, and one that still
+        // sees the old state fails validation since the slot was removed (or has since been reused)
+        this.states.set(newSlot, (this.states.get(newSlot) & ~REMOVED_BIT) + GENERATION_INCREMENT);
+
+        this.nextIndices.set(pred, newSlot);
+        if (this.membershipIndex != null && this.membershipIndex.covers(presentTagNum)) {
+            this.membershipIndex.add(presentTagNum);
+        }
+        this.numPresents.increment();
+    }
+
+    // Tries to remove the first present in the chain of presents. Returns the removed present's tag number if successful
+    // and null if not successful
+    @Override
+    public Integer removePresent(final int servantId) {
+        // Keep trying to remove first present until success or failure, backing off for longer after each failed attempt
+        int numRetries = 0;
+        while (true) {
+            Backoff.afterRetries(numRetries++);
+
+            // Get the first present node in the list along with its current state
+            int first = this.nextIndices.get(HEAD_INDEX);
+
+            // If no first present node is found, then there is no presents to remove from the list
+            if (first == NIL_INDEX) {
+                return null;
+            }
+
+            int firstState = this.states.get(first);
+            int firstTagNum;
+
+            lockNodes(HEAD_INDEX, first);
+            try {
+                // Make sure that the first present node hasn't been removed yet and that this
+                // present node is still the first present in the list
+                if (!validate(HEAD_INDEX, this.states.get(HEAD_INDEX), first, firstState)) {
+                    continue;
+                }
+
+                // Mark that this present node is now being removed in case another servant/thread
+                // is still referencing it, and set the head to point to the node right after it
+                this.states.set(first, firstState | REMOVED_BIT);
+                this.nextIndices.set(HEAD_INDEX, this.nextIndices.get(first));
+                firstTagNum = this.tagNums[first];
+                if (this.membershipIndex != null && this.membershipIndex.covers(firstTagNum)) {
+                    this.membershipIndex.remove(firstTagNum);
+                }
+                this.numPresents.decrement();
+            }
+            finally {
+                unlockNodes(HEAD_INDEX, first);
+            }
+
+            // The removed present's slot can now be reused by later insertions
+            freeSlot(first);
+
+            return firstTagNum;
+        }
+    }
+
+    // Checks whether or not present with this tag number is in the chain without locking anything
+    @Override
+    public boolean containsPresent(final int presentTagNum) {
+        // If the membership index keeps track of this present, then just look up its bit without traversing the chain
+        if (this.membershipIndex != null && this.membershipIndex.covers(presentTagNum)) {
+            return this.membershipIndex.contains(presentTagNum);
+        }
+
+        while (true) {
+            int predTagNum = Integer.MAX_VALUE;
+            int curr = this.nextIndices.get(HEAD_INDEX);
+            boolean restart = false;
+
+            // Keep iterating through the chain until the end is reached or until a
+            // node with a tag number <= the tag number passed in is found
+            while (curr != NIL_INDEX) {
+                int currState = this.states.get(curr);
+                int currTagNum = this.tagNums[curr];
+
+                // Tag numbers only increase along the list if a slot was reused while passing through it, so start over
+                if (currTagNum >= predTagNum) {
+                    restart = true;
+                    break;
+                }
+
+                if (presentTagNum >= currTagNum) {
+                    // Present was found if the target node's tag number is equal to the desired present tag number and
+                    // this target node was not marked as removed (or its slot reused) since
+                    return currTagNum == presentTagNum && (currState & REMOVED_BIT) == 0 && this.states.get(curr) == currState;
+                }
+
+                predTagNum = currTagNum;
+                curr = this.nextIndices.get(curr);
+            }
+
+            if (!restart) {
+                return false;
+            }
+        }
+    }
+}
+
+// Ordered chain of presents that is split into a number of independent sub-chains, each holding a contiguous range of tag numbers.
+// Partition 0 holds the largest tag numbers and the last partition holds the smallest, so the chain's global descending order is
+// just the partitions' chains one after another. Inserting or searching for a present only touches the one partition that covers
+// its tag number, which shortens every traversal by the number of partitions and spreads the servants' locks over many heads. Writing
+// a thank you card removes from the first partition that is not empty. A removal that races with an insertion into an earlier
+// partition may still take the later partition's present, which is the same as if that insertion had happened right after it.
+class PartitionedPresentsChain implements SnapshotPresentsChain {
+    private final LazyLinkedList[] partitions;
+    private final int maxTagNum;
+
+    // Snapshot clock shared by every partition (null if the partitions keep no versions), so that one snapshot covers all of them
+    private final SnapshotClock snapshotClock;
+
+    // Splits tag numbers 1 to maxTagNum evenly over the lists passed in. Tag numbers outside this range go into the first or last partition
+    public PartitionedPresentsChain(final LazyLinkedList[] partitions, final int maxTagNum, final SnapshotClock snapshotClock) {
+        this.partitions = partitions;
+        this.maxTagNum = maxTagNum;
+        this.snapshotClock = snapshotClock;
+    }
+
+    // Returns the index of the partition that covers this tag number
+    private int getPartition(final int presentTagNum) {
+        if (presentTagNum > this.maxTagNum) {
+            return 0;
+        }
+        else if (presentTagNum < 1) {
+            return this.partitions.length - 1;
+        }
+
+        return (int) ((long) (this.maxTagNum - presentTagNum) * this.partitions.length / this.maxTagNum);
+    }
+
+    // Returns the first partition that currently has any presents in it, or null if every partition is empty
+    private PresentsChain getFirstNonEmptyPartition() {
+        for (PresentsChain partition : this.partitions) {
+            if (!partition.isEmpty()) {
+                return partition;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return getFirstNonEmptyPartition() == null;
+    }
+
+    @Override
+    public long size() {
+        long size = 0;
+        for (PresentsChain partition : this.partitions) {
+            size += partition.size();
+        }
+        return size;
+    }
+
+    // Takes one snapshot of every partition at the same time on their shared clock, walking them from the largest tag numbers down
+    @Override
+    public PresentsSnapshot snapshot() {
+        if (this.snapshotClock == null) {
+            throw new IllegalStateException("The partitions were created without a snapshot clock, so they keep no versions to snapshot");
+        }
+
+        PresentNode[] heads = new PresentNode[this.partitions.length];
+        for (int i = 0; i < this.partitions.length; i++) {
+            heads[i] = this.partitions[i].getHead();
+        }
+        return this.snapshotClock.takeSnapshot(heads);
+    }
+
+    @Override
+    public boolean insertPresent(final int presentTagNum, final int servantId) {
+        return this.partitions[getPartition(presentTagNum)].insertPresent(presentTagNum, servantId);
+    }
+
+    // Since the run of presents is sorted in descending order, it splits into one consecutive piece per partition,
+    // and each piece is merged into its partition in a single pass straight out of the array passed in
+    @Override
+    public int insertPresents(final int[] presentTagNums, final int start, final int end, final int servantId) {
+        int numInserted = 0;
+
+        for (int pieceStart = start; pieceStart < end; ) {
+            int partition = getPartition(presentTagNums[pieceStart]);
+            int pieceEnd = pieceStart + 1;
+            while (pieceEnd < end && getPartition(presentTagNums[pieceEnd]) == partition) {
+                pieceEnd++;
+            }
+
+            numInserted += this.partitions[partition].insertPresents(presentTagNums, pieceStart, pieceEnd, servantId);
+            pieceStart = pieceEnd;
+        }
+
+        return numInserted;
+    }
+
+    // Keeps moving on to the next partition while the partitions are empty. A partition may also become empty between checking it
+    // and removing from it, in which case the removal moves on as well
+    @Override
+    public Integer removePresent(final int servantId) {
+        for (PresentsChain partition : this.partitions) {
+            if (!partition.isEmpty()) {
+                Integer removedTagNum = partition.removePresent(servantId);
+                if (removedTagNum != null) {
+                    return removedTagNum;
+                }
+            }
+        }
+        return null;
+    }
+
+    // Relaxes the removal within the first non-empty partition, so the presents skipped over are still the first ones in the whole chain
+    @Override
+    public Integer removePresentRelaxed(final RelaxedRemovalStats relaxedRemovalStats, final int servantId) {
+        for (PresentsChain partition : this.partitions) {
+            if (!partition.isEmpty()) {
+                Integer removedTagNum = partition.removePresentRelaxed(relaxedRemovalStats, servantId);
+                if (removedTagNum != null) {
+                    return removedTagNum;
+                }
+            }
+        }
+        return null;
+    }
+
+    // Only removes the run of presents from the first non-empty partition, so a batch may hold fewer than maxPresents presents
+    // even if later partitions have more presents in them
+    @Override
+    public int removePresents(final int[] removedTagNums, final int maxPresents, final int servantId) {
+        for (PresentsChain partition : this.partitions) {
+            if (!partition.isEmpty()) {
+                int numRemoved = partition.removePresents(removedTagNums, maxPresents, servantId);
+                if (numRemoved > 0) {
+                    return numRemoved;
+                }
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public boolean containsPresent(final int presentTagNum) {
+        return this.partitions[getPartition(presentTagNum)].containsPresent(presentTagNum);
+    }
+}
 
-                            // If print flag is turned on, print that the present was successfully inserted
-                            if (BirthdayPresents.PRINT_STEPS) {
-                                System.out.println("Servant " + servantId + " successfully added present #" + presentTagNum + " to the ordered chain of presents.");
-                            }
+// Benchmark harness for the ordered chain of presents, modeled after the way JMH runs benchmarks: every configuration
+// is run for a number of untimed warmup iterations (so the JIT compiler has finished optimizing the chain's methods) followed by
+// measured iterations, and the score is reported as the mean throughput with its 99.9% confidence interval. After compiling
+// BirthdayPresents.java, run it with "java ChainBenchmark [option=value ...]" (see DEFAULT_OPTIONS for every option).
+//
+// The micro benchmark has a number of threads run a random mix of insertPresent, removePresent, and containsPresent calls
+// against a chain that starts with a given number of presents. The macro benchmark runs the full servant workload
+// from BirthdayPresents.main (NUM_PRESENTS presents) for different numbers of servants.
+class ChainBenchmark {
+    // Default value of every option. Lists of values are separated by commas and each operation mix is given as the
+    // percentage of insert/remove/search calls
+    private static final String[][] DEFAULT_OPTIONS = {
+        {"mode", "all"},                                    // micro, macro, or all
+        {"chains", "LAZY_LIST,LAZY_SKIP_LIST,LOCK_FREE_LIST,ARRAY_LAZY_LIST"},
+        {"sizes", "1000,100000"},                           // Number of presents in the chain when each iteration starts
+        {"threads", "1,2,4,8,16,32,64"},
+        {"mixes", "50/50/0,25/25/50,10/10/80"},
+        {"servants", "1,4,16,64"},                          // Number of servants for the macro benchmark
+        {"executor", "PLATFORM_THREADS"},                   // Executor that the macro benchmark's servants are run on
+        {"warmup", "3"},                                    // Number of warmup iterations per configuration
+        {"iterations", "5"},                                // Number of measured iterations per configuration
+        {"time", "1000"}                                    // Length of each micro benchmark iteration in milliseconds
+    };
+
+    // Two-sided 99.9% Student's t critical values for 1 to 30 degrees of freedom, used for the confidence interval of each score
+    private static final double[] T_CRITICAL_VALUES = {
+        636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587,
+        4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850,
+        3.819, 3.792, 3.768, 3.745, 3.725, 3.707, 3.690, 3.674, 3.659, 3.646
+    };
+    private static final double T_CRITICAL_VALUE_LIMIT = 3.291;
+
+    // Results of the chain operations are folded into this field so the JIT compiler cannot optimize the calls away
+    public static volatile long sink;
 
-                            // Make the predecessor node point to this new present with the next largest tag number
-                            pred.nextPresentNode = newPresentNode;
-                            return true;
+    public static void main(String[] args) {
+        Map<String, String> options = parseOptions(args);
+        String mode = options.get("mode");
+        int warmupIterations = Integer.parseInt(options.get("warmup"));
+        int measuredIterations = Integer.parseInt(options.get("iterations"));
+        long iterationMillis = Long.parseLong(options.get("time"));
+        BirthdayPresents.SERVANT_EXECUTOR = BirthdayPresents.parseServantExecutor(options.get("executor"));
+
+        try {
+            if (mode.equals("micro") || mode.equals("all")) {
+                System.out.printf("%-6s %-21s %8s %7s %-10s %28s%n", "Bench", "Chain", "Size", "Threads", "Mix", "Score (ops/s)");
+                for (String chain : options.get("chains").split(",")) {
+                    for (String size : options.get("sizes").split(",")) {
+                        for (String threads : options.get("threads").split(",")) {
+                            for (String mix : options.get("mixes").split(",")) {
+                                double[] scores = runMicroBenchmark(BirthdayPresents.ChainType.valueOf(chain), Integer.parseInt(size),
+                                    Integer.parseInt(threads), parseMix(mix), warmupIterations, measuredIterations, iterationMillis);
+                                System.out.printf("%-6s %-21s %8s %7s %-10s %s%n", "micro", chain, size, threads, mix, formatScore(scores));
+                            }
                         }
                     }
-                } 
-                finally {
-                    curr.lock.unlock();
                 }
-            } 
-            finally {
-                pred.lock.unlock();
             }
-            // Unlock both nodes as needed before returning or before attempting to insert into the list again
+
+            if (mode.equals("macro") || mode.equals("all")) {
+                System.out.printf("%-6s %-21s %8s %7s %-10s %28s%n", "Bench", "Chain", "Presents", "Servant", "", "Score (presents/s)");
+                for (String chain : options.get("chains").split(",")) {
+                    for (String servants : options.get("servants").split(",")) {
+                        double[] scores = runMacroBenchmark(BirthdayPresents.ChainType.valueOf(chain), Integer.parseInt(servants),
+                            warmupIterations, measuredIterations);
+                        System.out.printf("%-6s %-21s %8d %7s %-10s %s%n", "macro", chain, BirthdayPresents.NUM_PRESENTS, servants, "", formatScore(scores));
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            System.out.println("Error joining thread: " + e.toString());
         }
     }
 
-    // Tries to remove the first present in the chain of presents. Returns the remove present's tag number if successful
-    // and null if not successful
-    public Integer removePresent(final int servantId) {
-        // Keep trying to remove first present until success or failure
-        while (true) {
-            // Get the fixed head node and the first present node in the list
-            PresentNode pred = this.head;
-            PresentNode first = this.head.nextPresentNode;
+    // Fills in the default options and then overrides them with any "option=value" arguments passed in
+    private static Map<String, String> parseOptions(final String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String[] option : DEFAULT_OPTIONS) {
+            options.put(option[0], option[1]);
+        }
 
-            // If no first present node is found, then there is no presents to remove from the list
-            if (first == null) {
-                // If print flag is turned on, print that no present could be removed from the chain
-                if (BirthdayPresents.PRINT_STEPS) {
-                    System.out.println("Servant " + servantId + " could not find any presents in the chain to write thank you cards for at this time.");
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator == -1 || !options.containsKey(arg.substring(0, separator))) {
+                throw new IllegalArgumentException("Unknown benchmark option: " + arg);
+            }
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+
+        return options;
+    }
+
+    // Parses an "insert/remove/search" mix of percentages that must add up to 100
+    private static int[] parseMix(final String mix) {
+        String[] parts = mix.split("/");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Operation mix must be three percentages that add up to 100: " + mix);
+        }
+
+        int[] percentages = {Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2])};
+        if (percentages[0] + percentages[1] + percentages[2] != 100) {
+            throw new IllegalArgumentException("Operation mix must be three percentages that add up to 100: " + mix);
+        }
+
+        return percentages;
+    }
+
+    // Runs the warmup and measured iterations of one micro benchmark configuration and returns the ops/sec of each measured iteration
+    private static double[] runMicroBenchmark(final BirthdayPresents.ChainType chainType, final int chainSize, final int numThreads,
+            final int[] mix, final int warmupIterations, final int measuredIterations, final long iterationMillis) throws InterruptedException {
+        double[] scores = new double[measuredIterations];
+
+        // The micro benchmark inserts tag numbers again after they were removed, which the lock-free list's membership index does not support
+        if (BirthdayPresents.USE_MEMBERSHIP_INDEX && chainType == BirthdayPresents.ChainType.LOCK_FREE_LIST) {
+            throw new IllegalArgumentException("The lock-free list's membership index assumes each tag number is only inserted once, "
+                + "so the micro benchmark cannot run it with USE_MEMBERSHIP_INDEX turned on");
+        }
+
+        for (int iteration = 0; iteration < warmupIterations + measuredIterations; iteration++) {
+            // Start every iteration with a new chain containing the same number of randomly chosen presents. Tags are drawn
+            // from twice the chain size so that inserts and searches both hit and miss
+            int tagRange = 2 * chainSize;
+            PresentsChain presentsChain = BirthdayPresents.createPresentsChain(chainType, tagRange);
+            for (int numInserted = 0; numInserted < chainSize; ) {
+                if (presentsChain.insertPresent(ThreadLocalRandom.current().nextInt(tagRange) + 1, 0)) {
+                    numInserted++;
                 }
-                return null;
             }
 
-            pred.lock.lock();
+            CountDownLatch startSignal = new CountDownLatch(1);
+            MicroBenchmarkThread[] threads = new MicroBenchmarkThread[numThreads];
+            for (int i = 0; i < numThreads; i++) {
+                threads[i] = new MicroBenchmarkThread(i + 1, presentsChain, mix, tagRange, startSignal);
+                threads[i].start();
+            }
+
+            // Let every thread run operations for the length of the iteration and then tell them all to stop
+            long startTime = System.nanoTime();
+            startSignal.countDown();
+            Thread.sleep(iterationMillis);
+            for (MicroBenchmarkThread thread : threads) {
+                thread.stopRunning = true;
+            }
+            long endTime = System.nanoTime();
+
+            long totalOps = 0;
+            for (MicroBenchmarkThread thread : threads) {
+                thread.join();
+                totalOps += thread.numOps;
+                sink += thread.checksum;
+            }
+
+            if (iteration >= warmupIterations) {
+                scores[iteration - warmupIterations] = totalOps / ((endTime - startTime) / 1e9);
+            }
+        }
+
+        return scores;
+    }
+
+    // Runs the warmup and measured iterations of the full servant workload and returns the presents/sec of each measured iteration
+    private static double[] runMacroBenchmark(final BirthdayPresents.ChainType chainType, final int numServants,
+            final int warmupIterations, final int measuredIterations) throws InterruptedException {
+        double[] scores = new double[measuredIterations];
+
+        for (int iteration = 0; iteration < warmupIterations + measuredIterations; iteration++) {
+            long elapsedNanos = BirthdayPresents.processAllPresents(chainType, numServants);
+
+            if (iteration >= warmupIterations) {
+                scores[iteration - warmupIterations] = BirthdayPresents.NUM_PRESENTS / (elapsedNanos / 1e9);
+            }
+        }
+
+        return scores;
+    }
+
+    // Formats the mean of the scores along with the half-width of its 99.9% confidence interval
+    private static String formatScore(final double[] scores) {
+        double mean = 0;
+        for (double score : scores) {
+            mean += score;
+        }
+        mean /= scores.length;
+
+        if (scores.length < 2) {
+            return String.format("%14.1f +- %11s", mean, "NaN");
+        }
+
+        double variance = 0;
+        for (double score : scores) {
+            variance += (score - mean) * (score - mean);
+        }
+        variance /= scores.length - 1;
+
+        int degreesOfFreedom = scores.length - 1;
+        double tCritical = (degreesOfFreedom <= T_CRITICAL_VALUES.length) ? T_CRITICAL_VALUES[degreesOfFreedom - 1] : T_CRITICAL_VALUE_LIMIT;
+        double error = tCritical * Math.sqrt(variance / scores.length);
+
+        return String.format("%14.1f +- %11.1f", mean, error);
+    }
+
+    // Thread that keeps running a random mix of chain operations until it is told to stop, counting how many it completes
+    private static class MicroBenchmarkThread extends Thread {
+        private final int threadId;
+        private final PresentsChain presentsChain;
+        private final int[] mix;
+        private final int tagRange;
+        private final CountDownLatch startSignal;
+
+        public volatile boolean stopRunning;
+        public long numOps;
+        public long checksum;
+
+        public MicroBenchmarkThread(final int threadId, final PresentsChain presentsChain, final int[] mix, final int tagRange,
+                final CountDownLatch startSignal) {
+            this.threadId = threadId;
+            this.presentsChain = presentsChain;
+            this.mix = mix;
+            this.tagRange = tagRange;
+            this.startSignal = startSignal;
+        }
+
+        @Override
+        public void run() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+
             try {
-                first.lock.lock();
-                try {
-                    // Make sure that the first present node hasn't been removed yet and that this
-                    // present node is still the first present in the list
-                    if (validate(pred, first)) {
-                        // Mark that this present node is now being removed in case another servant/thread
-                        // is still referencing it
-                        first.removed = true;
+                this.startSignal.await();
+            }
+            catch (InterruptedException e) {
+                return;
+            }
 
-                        // Set fixed head node to point to node right after this present, removing it from the list
-                        pred.nextPresentNode = first.nextPresentNode;
-                        
-                        // If print flag is turned on, print the tag number of this first present that was successfully removed
-                        if (BirthdayPresents.PRINT_STEPS) {
-                            System.out.println("Servant " + servantId + " successfully wrote thank you card for present #" + first.tagNumber + ".");
-                        }
+            while (!this.stopRunning) {
+                int randNum = random.nextInt(100);
 
-                        return first.tagNumber;
-                    }
-                } 
-                finally {
-                    first.lock.unlock();
+                if (randNum < this.mix[0]) {
+                    this.checksum += this.presentsChain.insertPresent(random.nextInt(this.tagRange) + 1, this.threadId) ? 1 : 0;
                 }
-            } 
-            finally {
-                pred.lock.unlock();
+                else if (randNum < this.mix[0] + this.mix[1]) {
+                    Integer removedTagNum = this.presentsChain.removePresent(this.threadId);
+                    this.checksum += (removedTagNum != null) ? removedTagNum : 0;
+                }
+                else {
+                    this.checksum += this.presentsChain.containsPresent(random.nextInt(this.tagRange) + 1) ? 1 : 0;
+                }
+
+                this.numOps++;
             }
-            // Unlock both nodes before returning or before attempting to remove the chain's first present again
         }
     }
+}
 
-    // Delete Later
-    // public boolean removePresent(final int presentTagNum) {
-    //     while (true) {
-    //         PresentNode pred = this.head;
-    //         PresentNode curr = head.nextPresentNode;
+// Offline decoder for the binary journal written by EventJournal. Prints the human-readable history of every servant's tasks in the
+// order they were invoked, and then checks that the history is linearizable for an ordered chain of unique presents:
+//     - every present is added exactly once, has exactly one thank you card written for it, and is never removed before it was added
+//     - a search only finds a present if it could have been in the chain at some point during the search, and only misses a present
+//       if it could have been missing at some point during the search
+//     - an add only fails if the present could already have been in the chain
+//     - unless removals were relaxed, every thank you card is written for the first present in the chain: no removal may take a
+//       present while a larger present was definitely in the chain for the whole removal, and no removal may find the chain empty then
+// Each check only flags an event if no possible linearization order could explain it, treating each task as taking effect at some
+// point between its invocation and response times.
+class JournalDecoder {
+    // Maximum number of violations that are printed out (all of them are still counted)
+    private static final int MAX_PRINTED_VIOLATIONS = 20;
 
-    //         while (curr != null && curr.tagNumber < presentTagNum) {
-    //             pred = curr;
-    //             curr = curr.nextPresentNode;
-    //         }
+    private long[] invokeTimes;
+    private long[] responseTimes;
+    private long[] events;
+    private int numEvents;
+    private int numServants;
+    private int numPresents;
+    private boolean relaxedRemovals;
 
-    //         if (curr == null) {
-    //             return false;
-    //         }
+    private int numViolations;
 
-    //         pred.lock.lock();
-    //         try {
-    //             curr.lock.lock();
-    //             try {
-    //                 if (validate(pred, curr)) {
-    //                     if (curr.tagNumber != presentTagNum) {
-    //                         return false;
-    //                     } 
-    //                     else {
-    //                         curr.removed = true;
-    //                         pred.nextPresentNode = curr.nextPresentNode;
-    //                         return true;
-    //                     }
-    //                 }
-    //             } 
-    //             finally {
-    //                 curr.lock.unlock();
-    //             }
-    //         } 
-    //         finally {
-    //             pred.lock.unlock();
-    //         }
-    //     }
-    // }
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: java JournalDecoder <journal file> [--quiet]");
+            return;
+        }
 
-    // Checks whether or not present with this tag number is in the chain
-    public boolean containsPresent(final int presentTagNum) {
-        // Get the first two nodes of the list
-        PresentNode pred = this.head;
-        PresentNode curr = this.head.nextPresentNode;
+        boolean printHistory = !(args.length > 1 && args[1].equals("--quiet"));
+        JournalDecoder decoder = new JournalDecoder();
 
-        // Keep iterating through the chain until the end is reached or until a 
-        // node with a tag number >= the tag number passed in is found
-        while (curr != null && presentTagNum < curr.tagNumber) {
-            pred = curr;
-            curr = curr.nextPresentNode;
+        try {
+            decoder.read(args[0]);
+        }
+        catch (IOException e) {
+            System.out.println("Error reading journal " + args[0] + ": " + e.toString());
+            return;
         }
 
-        // If predecessor node is currently being modified/affected by an insertion or deletion into the list, 
-        // then wait until this operation is done to get the most up-to-date results in-case the desired present 
-        // may be in the process of being inserted to or removed from the list
-        if (((ReentrantLock) pred.lock).isLocked()) {
-            pred.lock.lock();
+        if (printHistory) {
+            decoder.printHistory();
+        }
+        decoder.checkLinearizability();
+    }
 
-            // As long as predecessor was not removed from the list, then update the following target
-            // node to get the most up-to-date results of whether or not the present is in the list
-            if (!pred.removed) {
-                curr = pred.nextPresentNode;
+    // Reads the journal's header and every event record in it
+    private void read(final String fileName) throws IOException {
+        File file = new File(fileName);
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != EventJournal.MAGIC_NUMBER) {
+                throw new IOException("not a present journal");
+            }
+            if (in.readInt() != EventJournal.VERSION) {
+                throw new IOException("unsupported journal version");
             }
 
-            pred.lock.unlock();
+            this.numServants = in.readInt();
+            this.numPresents = in.readInt();
+            this.relaxedRemovals = in.readInt() == 1;
+
+            // The header is 5 ints and every record is 3 longs
+            int maxEvents = (int) ((file.length() - 5 * Integer.BYTES) / (3 * Long.BYTES));
+            this.invokeTimes = new long[maxEvents];
+            this.responseTimes = new long[maxEvents];
+            this.events = new long[maxEvents];
+
+            for (this.numEvents = 0; this.numEvents < maxEvents; this.numEvents++) {
+                this.invokeTimes[this.numEvents] = in.readLong();
+                this.responseTimes[this.numEvents] = in.readLong();
+                this.events[this.numEvents] = in.readLong();
+            }
         }
-        
-        // Present was found if did not reach the end of the list while searching, and the
-        // target node's tag number is equal to the desired present tag number, and
-        // this target node was not marked as removed since
-        boolean foundPresent = curr != null && curr.tagNumber == presentTagNum && !curr.removed;
+    }
 
-        return foundPresent;
+    // Returns the indices of the first n values sorted by the values
+    private static Integer[] sortedIndices(final long[] values, final int n) {
+        Integer[] indices = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            indices[i] = i;
+        }
+        Arrays.sort(indices, (a, b) -> Long.compare(values[a], values[b]));
+        return indices;
+    }
+
+    // Prints every event in the order the tasks were invoked, along with when they were invoked and responded relative to the first task
+    private void printHistory() {
+        Integer[] order = sortedIndices(this.invokeTimes, this.numEvents);
+        long startTime = (this.numEvents > 0) ? this.invokeTimes[order[0]] : 0;
+
+        StringBuilder line = new StringBuilder();
+        for (int i : order) {
+            long event = this.events[i];
+            line.setLength(0);
+            line.append(String.format("[%12.3fus - %12.3fus] ", (this.invokeTimes[i] - startTime) / 1000.0, (this.responseTimes[i] - startTime) / 1000.0));
+            line.append(EventJournal.describeEvent(EventJournal.getServantId(event), EventJournal.getTask(event), EventJournal.getOutcome(event),
+                EventJournal.getPresentTagNum(event)));
+            System.out.println(line);
+        }
+    }
+
+    private void reportViolation(final String violation) {
+        if (this.numViolations < MAX_PRINTED_VIOLATIONS) {
+            System.out.println("    " + violation);
+        }
+        this.numViolations++;
+    }
+
+    private void checkLinearizability() {
+        // Index of the event that added and removed each present (-1 if it never was)
+        int[] addEvents = new int[this.numPresents + 1];
+        int[] removeEvents = new int[this.numPresents + 1];
+        Arrays.fill(addEvents, -1);
+        Arrays.fill(removeEvents, -1);
+
+        System.out.println("Checking " + this.numEvents + " events from " + this.numServants + " servants for " + this.numPresents + " presents:");
+
+        // Find the add and removal of every present, making sure each only happened once
+        for (int i = 0; i < this.numEvents; i++) {
+            long event = this.events[i];
+            int tagNum = EventJournal.getPresentTagNum(event);
+            int outcome = EventJournal.getOutcome(event);
+            Servant.ServantTask task = EventJournal.getTask(event);
+
+            if (task == Servant.ServantTask.ADD_PRESENT_TO_CHAIN && outcome != EventJournal.OUTCOME_FAILURE) {
+                if (outcome == EventJournal.OUTCOME_UNKNOWN) {
+                    reportViolation("Present #" + tagNum + " was part of a batch that was only partially added to the chain");
+                }
+                if (addEvents[tagNum] != -1) {
+                    reportViolation("Present #" + tagNum + " was added to the chain more than once");
+                }
+                addEvents[tagNum] = i;
+            }
+            else if (task == Servant.ServantTask.WRITE_THANK_YOU_CARD && outcome == EventJournal.OUTCOME_SUCCESS) {
+                if (removeEvents[tagNum] != -1) {
+                    reportViolation("Thank you card was written more than once for present #" + tagNum);
+                }
+                removeEvents[tagNum] = i;
+            }
+        }
+
+        for (int tagNum = 1; tagNum <= this.numPresents; tagNum++) {
+            int add = addEvents[tagNum];
+            int remove = removeEvents[tagNum];
+
+            if (add == -1) {
+                reportViolation("Present #" + tagNum + " was never added to the chain");
+            }
+            if (remove == -1) {
+                reportViolation("Thank you card was never written for present #" + tagNum);
+            }
+            if (add != -1 && remove != -1 && this.responseTimes[remove] < this.invokeTimes[add]) {
+                reportViolation("Thank you card was written for present #" + tagNum + " before it was added to the chain");
+            }
+        }
+
+        // Check that every search and failed add is explained by the present being in or out of the chain at some point during it
+        for (int i = 0; i < this.numEvents; i++) {
+            long event = this.events[i];
+            int tagNum = EventJournal.getPresentTagNum(event);
+            int outcome = EventJournal.getOutcome(event);
+            Servant.ServantTask task = EventJournal.getTask(event);
+
+            boolean failedAdd = task == Servant.ServantTask.ADD_PRESENT_TO_CHAIN && outcome == EventJournal.OUTCOME_FAILURE;
+            boolean found = task == Servant.ServantTask.SEARCH_PRESENT_IN_CHAIN && outcome == EventJournal.OUTCOME_SUCCESS;
+            boolean missed = task == Servant.ServantTask.SEARCH_PRESENT_IN_CHAIN && outcome != EventJournal.OUTCOME_SUCCESS;
+
+            if ((failedAdd || found) && !mayBePresent(addEvents[tagNum], removeEvents[tagNum], i)) {
+                reportViolation(EventJournal.describeEvent(EventJournal.getServantId(event), task, outcome, tagNum)
+                    + " But the present was never in the chain during that time.");
+            }
+            else if (missed && isDefinitelyPresent(addEvents[tagNum], removeEvents[tagNum], i)) {
+                reportViolation(EventJournal.describeEvent(EventJournal.getServantId(event), task, outcome, tagNum)
+                    + " But the present was in the chain the whole time.");
+            }
+        }
+
+        if (this.relaxedRemovals) {
+            System.out.println("    Removals were relaxed, so skipping the check that thank you cards were written in order");
+        }
+        else {
+            checkRemovalOrder(addEvents, removeEvents);
+        }
+
+        if (this.numViolations == 0) {
+            System.out.println("History is linearizable!");
+        }
+        else {
+            System.out.println("Found " + this.numViolations + " violations" + ((this.numViolations > MAX_PRINTED_VIOLATIONS)
+                ? " (only the first " + MAX_PRINTED_VIOLATIONS + " were printed)" : ""));
+        }
+    }
+
+    // Returns whether or not the present added and removed by these events could have been in the chain at some point during the event
+    private boolean mayBePresent(final int add, final int remove, final int event) {
+        return add != -1 && this.invokeTimes[add] < this.responseTimes[event]
+            && (remove == -1 || this.responseTimes[remove] > this.invokeTimes[event]);
+    }
+
+    // Returns whether or not the present added and removed by these events was definitely in the chain during the whole event
+    private boolean isDefinitelyPresent(final int add, final int remove, final int event) {
+        return add != -1 && this.responseTimes[add] < this.invokeTimes[event]
+            && (remove == -1 || this.invokeTimes[remove] > this.responseTimes[event]);
+    }
+
+    // Checks that no thank you card task took a smaller present (or found the chain empty) while a larger present was definitely in the
+    // chain for the whole task. Sweeps the removals in order of invocation time while adding every present that was definitely added
+    // before each removal to a Fenwick tree over the presents' removal invocation times, which keeps the largest tag number of the
+    // presents that were still not being removed at each point in time. This takes O(n log n) time instead of comparing every pair.
+    private void checkRemovalOrder(final int[] addEvents, final int[] removeEvents) {
+        // Distinct times that the removal of each present was invoked (Long.MAX_VALUE for presents that were never removed)
+        long[] removeInvokeTimes = new long[this.numPresents + 1];
+        long[] addResponseTimes = new long[this.numPresents + 1];
+        for (int tagNum = 1; tagNum <= this.numPresents; tagNum++) {
+            removeInvokeTimes[tagNum] = (removeEvents[tagNum] == -1) ? Long.MAX_VALUE : this.invokeTimes[removeEvents[tagNum]];
+            addResponseTimes[tagNum] = (addEvents[tagNum] == -1) ? Long.MAX_VALUE : this.responseTimes[addEvents[tagNum]];
+        }
+        long[] sortedRemoveTimes = Arrays.copyOfRange(removeInvokeTimes, 1, this.numPresents + 1);
+        Arrays.sort(sortedRemoveTimes);
+
+        // Fenwick tree where position p (1-based, counted from the latest removal time) holds the largest tag number of the presents
+        // whose removal was invoked at the p-th latest time, so a prefix maximum covers every removal time after some point
+        int[] largestTagNums = new int[this.numPresents + 1];
+
+        Integer[] presentsByAdd = sortedIndices(addResponseTimes, this.numPresents + 1);
+        Integer[] eventsByInvoke = sortedIndices(this.invokeTimes, this.numEvents);
+        int nextPresent = 0;
+
+        for (int i : eventsByInvoke) {
+            long event = this.events[i];
+            if (EventJournal.getTask(event) != Servant.ServantTask.WRITE_THANK_YOU_CARD) {
+                continue;
+            }
+
+            // Add every present that was definitely in the chain before this removal started
+            while (nextPresent < presentsByAdd.length && addResponseTimes[presentsByAdd[nextPresent]] < this.invokeTimes[i]) {
+                int tagNum = presentsByAdd[nextPresent++];
+                if (tagNum == 0) {
+                    continue;
+                }
+
+                int position = this.numPresents - lowerBound(sortedRemoveTimes, removeInvokeTimes[tagNum]);
+                for (; position <= this.numPresents; position += position & -position) {
+                    largestTagNums[position] = Math.max(largestTagNums[position], tagNum);
+                }
+            }
+
+            // Find the largest present whose removal started after this removal responded, so it was in the chain the whole time
+            int largestPresentTagNum = 0;
+            int position = this.numPresents - upperBound(sortedRemoveTimes, this.responseTimes[i]);
+            for (; position > 0; position -= position & -position) {
+                largestPresentTagNum = Math.max(largestPresentTagNum, largestTagNums[position]);
+            }
+
+            int tagNum = EventJournal.getPresentTagNum(event);
+            boolean removedPresent = EventJournal.getOutcome(event) == EventJournal.OUTCOME_SUCCESS;
+
+            if (removedPresent && largestPresentTagNum > tagNum) {
+                reportViolation(EventJournal.describeEvent(EventJournal.getServantId(event), Servant.ServantTask.WRITE_THANK_YOU_CARD,
+                    EventJournal.OUTCOME_SUCCESS, tagNum) + " But present #" + largestPresentTagNum + " was ahead of it in the chain the whole time.");
+            }
+            else if (!removedPresent && largestPresentTagNum > 0) {
+                reportViolation(EventJournal.describeEvent(EventJournal.getServantId(event), Servant.ServantTask.WRITE_THANK_YOU_CARD,
+                    EventJournal.OUTCOME_EMPTY, tagNum) + " But present #" + largestPresentTagNum + " was in the chain the whole time.");
+            }
+        }
+    }
+
+    // Returns the index of the first value in the sorted array that is >= the key
+    private static int lowerBound(final long[] sortedValues, final long key) {
+        int low = 0, high = sortedValues.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sortedValues[mid] < key) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Returns the index of the first value in the sorted array that is > the key
+    private static int upperBound(final long[] sortedValues, final long key) {
+        int low = 0, high = sortedValues.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sortedValues[mid] <= key) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
     }
-}
\ No newline at end of file
+}
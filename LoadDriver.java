@@ -0,0 +1,408 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+// Load driver for both simulations, for charting how they scale and catching regressions between versions. It sweeps every
+// combination of the parameters below through the whole workload (BirthdayPresents.processAllPresents for the presents and
+// TemperatureReadings.recordAllReadings in virtual time for the temperatures). Each configuration runs a few untimed warmup
+// iterations and then the measured iterations, and one CSV row is appended per configuration with:
+//     - the mean throughput and the throughput of the slowest measured iteration
+//     - the 50th, 90th, and 99th percentile and max time of the measured iterations (nearest rank, so with few iterations the
+//       higher percentiles are the slowest iterations)
+//     - the number of garbage collections and the time spent in them during the measured iterations
+//     - the allocation rate during the measured iterations
+// The CSV is appended to rather than overwritten, and every row carries the label option, so runs of different versions can be
+// kept in one file and compared.
+// Usage: java LoadDriver [option=value ...] (after compiling BirthdayPresents.java, TemperatureReadings.java, and LoadDriver.java)
+public class LoadDriver {
+    // Default value of every option. Lists of values are separated by commas and each servant task mix is given as the
+    // add/write/search weights separated by slashes
+    private static final String[][] DEFAULT_OPTIONS = {
+        {"sims", "presents,temperatures"},                  // Which simulations to sweep
+        {"csv", "load.csv"},                                // File that a row is appended to for every configuration
+        {"label", ""},                                      // Free text put in every row, for example the version being measured
+        {"warmup", "2"},                                    // Number of warmup iterations per configuration
+        {"iterations", "5"},                                // Number of measured iterations per configuration
+        {"chains", "LAZY_LIST,LOCK_FREE_LIST"},
+        {"servants", "1,4,16"},
+        {"presents", "100000"},
+        {"mixes", "1/1/1,2/2/1,1/1/4"},
+        {"executor", "PLATFORM_THREADS"},
+        {"insertBatches", "1"},                             // Presents each servant adds to the chain at once
+        {"removeBatches", "1"},                             // Presents each servant writes thank you cards for at once
+        {"indexes", "false"},                               // Whether the chain keeps a membership index (true or false)
+        {"relaxed", "false"},                               // Whether thank you cards are written with relaxed removals
+        {"relaxationBound", "0"},                           // Bound of the relaxed removals (0 for p * log2(p) for p servants)
+        {"metrics", "false"},                               // Whether the servants collect hot path metrics while measured
+        {"journals", ""},                                   // Files that the servants' tasks are journaled to (empty for none)
+        {"sensors", "8,1000,10000"},
+        {"hours", "24"},
+        {"reports", "INCREMENTAL,FORK_JOIN"}
+    };
+
+    private static final String CSV_HEADER = "label,timestamp,simulation,structure,workers,size,mix,executor,insert_batch,remove_batch,"
+        + "index,relaxation_bound,metrics,journal,warmup,iterations,unit,mean_throughput,min_throughput,p50_ms,p90_ms,p99_ms,max_ms,"
+        + "gc_count,gc_ms,alloc_mb_per_s,error";
+
+    // Settings columns of the rows of simulations that the presents' settings do not apply to
+    private static final String NO_PRESENTS_SETTINGS = ",,,,,";
+
+    // Longest time to wait for the notifications of garbage collections that already happened to be delivered
+    private static final long GC_NOTIFICATION_WAIT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // Number of garbage collections that notifications were delivered for (counting the ones before the listener was added as
+    // delivered), and how many bytes they freed from the heap
+    private static final AtomicLong numGcNotifications = new AtomicLong(0);
+    private static final AtomicLong gcFreedBytes = new AtomicLong(0);
+
+    public static void main(String[] args) {
+        Map<String, String> options = parseOptions(args);
+        int warmupIterations = Integer.parseInt(options.get("warmup"));
+        int measuredIterations = Integer.parseInt(options.get("iterations"));
+        Set<String> sims = new HashSet<>(Arrays.asList(options.get("sims").split(",")));
+        int numFailures = 0;
+
+        if (measuredIterations < 1) {
+            throw new IllegalArgumentException("There must be at least 1 measured iteration");
+        }
+
+        listenForGarbageCollections();
+        BirthdayPresents.PRINT_STEPS = false;
+        BirthdayPresents.SERVANT_EXECUTOR = BirthdayPresents.parseServantExecutor(options.get("executor"));
+        TemperatureReadings.CLOCK_MODE = TemperatureReadings.ClockMode.VIRTUAL_TIME;
+
+        File csvFile = new File(options.get("csv"));
+        boolean writeHeader = !csvFile.exists() || csvFile.length() == 0;
+
+        try (PrintWriter csv = new PrintWriter(new FileWriter(csvFile, true))) {
+            if (writeHeader) {
+                csv.println(CSV_HEADER);
+            }
+
+            System.out.printf("%-12s %-21s %8s %8s %-8s %16s %10s %10s %6s %12s  %s%n", "Simulation", "Structure", "Workers", "Size", "Mix",
+                "Throughput", "p50 (ms)", "p99 (ms)", "GCs", "Alloc (MB/s)", "Settings");
+
+            if (sims.contains("presents")) {
+                // Every combination of the presents' options, in the order that they are listed here
+                for (String[] combination : getCombinations(options, "chains", "servants", "presents", "mixes", "insertBatches",
+                        "removeBatches", "indexes", "relaxed", "metrics", "journals")) {
+                    String chain = combination[0];
+                    String servants = combination[1];
+                    String presents = combination[2];
+                    String mix = combination[3];
+                    String journalFile = combination[9];
+                    String settings = String.join(",", combination[4], combination[5], combination[6], "", combination[8], journalFile);
+
+                    try {
+                        BirthdayPresents.ChainType chainType = BirthdayPresents.ChainType.valueOf(chain);
+                        BirthdayPresents.NUM_PRESENTS = Integer.parseInt(presents);
+                        BirthdayPresents.TASK_MIX = BirthdayPresents.parseTaskMix(mix);
+                        BirthdayPresents.INSERT_BATCH_SIZE = Integer.parseInt(combination[4]);
+                        BirthdayPresents.REMOVE_BATCH_SIZE = Integer.parseInt(combination[5]);
+                        BirthdayPresents.USE_MEMBERSHIP_INDEX = BirthdayPresents.parseFlag("indexes", combination[6]);
+                        BirthdayPresents.RELAXED_REMOVALS = BirthdayPresents.parseFlag("relaxed", combination[7]);
+                        BirthdayPresents.RELAXATION_BOUND = Integer.parseInt(options.get("relaxationBound"));
+                        BirthdayPresents.COLLECT_METRICS = BirthdayPresents.parseFlag("metrics", combination[8]);
+                        BirthdayPresents.checkBatchesAndRelaxation();
+                        int numServants = Integer.parseInt(servants);
+
+                        // The relaxation bound column is left empty when removals are strict
+                        settings = String.join(",", combination[4], combination[5], combination[6], (BirthdayPresents.RELAXED_REMOVALS)
+                            ? Integer.toString(BirthdayPresents.getRelaxationBound(numServants)) : "", combination[8], journalFile);
+
+                        Measurement measurement = measure(warmupIterations, measuredIterations,
+                            () -> BirthdayPresents.processAllPresents(chainType, numServants, journalFile.isEmpty() ? null : journalFile));
+                        report(csv, options, "presents", chain, numServants, BirthdayPresents.NUM_PRESENTS, mix,
+                            BirthdayPresents.SERVANT_EXECUTOR.toString(), settings, "presents/s", BirthdayPresents.NUM_PRESENTS, measurement);
+                    }
+                    catch (Exception e) {
+                        reportFailure(csv, options, "presents", chain, servants, presents, mix,
+                            BirthdayPresents.SERVANT_EXECUTOR.toString(), settings, "presents/s", e);
+                        numFailures++;
+                    }
+                }
+            }
+
+            if (sims.contains("temperatures")) {
+                for (String reportMode : options.get("reports").split(",")) {
+                    for (String sensors : options.get("sensors").split(",")) {
+                        for (String hours : options.get("hours").split(",")) {
+                            try {
+                                TemperatureReadings.REPORT_MODE = TemperatureReadings.ReportMode.valueOf(reportMode);
+                                TemperatureReadings.NUM_SENSORS = Integer.parseInt(sensors);
+                                TemperatureReadings.NUM_HOURS = Integer.parseInt(hours);
+                                long numReadings = (long) TemperatureReadings.NUM_SENSORS * TemperatureReadings.NUM_HOURS * 60;
+
+                                Measurement measurement = measure(warmupIterations, measuredIterations,
+                                    () -> TemperatureReadings.recordAllReadings(false).elapsedNanos);
+                                report(csv, options, "temperatures", reportMode, TemperatureReadings.NUM_SENSORS, TemperatureReadings.NUM_HOURS, "",
+                                    "VIRTUAL_TIME", NO_PRESENTS_SETTINGS, "readings/s", numReadings, measurement);
+                            }
+                            catch (Exception e) {
+                                reportFailure(csv, options, "temperatures", reportMode, sensors, hours, "", "VIRTUAL_TIME", NO_PRESENTS_SETTINGS,
+                                    "readings/s", e);
+                                numFailures++;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            System.out.println("Error writing " + options.get("csv") + ": " + e.toString());
+            System.exit(1);
+        }
+
+        // Exit with an error if any configuration failed, so that a sweep with missing rows does not look like a successful run
+        if (numFailures > 0) {
+            System.out.println(numFailures + " configuration(s) failed, see the error column of " + options.get("csv"));
+            System.exit(1);
+        }
+    }
+
+    // Fills in the default options and then overrides them with any "option=value" arguments passed in
+    private static Map<String, String> parseOptions(final String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String[] option : DEFAULT_OPTIONS) {
+            options.put(option[0], option[1]);
+        }
+
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator == -1 || !options.containsKey(arg.substring(0, separator))) {
+                throw new IllegalArgumentException("Unknown load driver option: " + arg);
+            }
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+
+        return options;
+    }
+
+    // Returns every combination of the comma separated values of the options passed in, with one value of each option per
+    // combination in the same order as the options. The first option changes the slowest, like in nested loops
+    private static List<String[]> getCombinations(final Map<String, String> options, final String... keys) {
+        List<String[]> combinations = new ArrayList<>();
+        combinations.add(new String[0]);
+
+        for (String key : keys) {
+            List<String[]> extended = new ArrayList<>();
+            for (String[] combination : combinations) {
+                for (String value : options.get(key).split(",", -1)) {
+                    String[] next = Arrays.copyOf(combination, combination.length + 1);
+                    next[combination.length] = value;
+                    extended.add(next);
+                }
+            }
+            combinations = extended;
+        }
+
+        return combinations;
+    }
+
+    // One run of a whole workload, returning how many nanoseconds it took
+    private interface Workload {
+        long run() throws Exception;
+    }
+
+    // Times of the measured iterations of one configuration, and the garbage collections and allocations while they ran
+    private static class Measurement {
+        private final long[] iterationNanos;
+        private long numGcs;
+        private long gcMillis;
+        private long allocatedBytes;
+        private long totalNanos;
+
+        private Measurement(final int measuredIterations) {
+            this.iterationNanos = new long[measuredIterations];
+        }
+    }
+
+    // Runs the warmup and measured iterations of one configuration
+    private static Measurement measure(final int warmupIterations, final int measuredIterations, final Workload workload) throws Exception {
+        Measurement measurement = new Measurement(measuredIterations);
+
+        for (int iteration = 0; iteration < warmupIterations; iteration++) {
+            workload.run();
+        }
+
+        long startGcs = getGcCount();
+        long startGcMillis = getGcMillis();
+        long startAllocated = getAllocatedBytes();
+        long startTime = System.nanoTime();
+
+        for (int iteration = 0; iteration < measuredIterations; iteration++) {
+            measurement.iterationNanos[iteration] = workload.run();
+        }
+
+        measurement.totalNanos = System.nanoTime() - startTime;
+        measurement.allocatedBytes = getAllocatedBytes() - startAllocated;
+        measurement.numGcs = getGcCount() - startGcs;
+        measurement.gcMillis = getGcMillis() - startGcMillis;
+
+        return measurement;
+    }
+
+    // Appends the configuration's row to the CSV and prints a summary of it
+    private static void report(final PrintWriter csv, final Map<String, String> options, final String simulation, final String structure,
+            final int workers, final long size, final String mix, final String executor, final String settings, final String unit,
+            final long workPerIteration, final Measurement measurement) {
+        long[] sortedNanos = measurement.iterationNanos.clone();
+        Arrays.sort(sortedNanos);
+
+        long totalIterationNanos = 0;
+        for (long nanos : sortedNanos) {
+            totalIterationNanos += nanos;
+        }
+
+        double meanThroughput = workPerIteration * sortedNanos.length / (totalIterationNanos / 1e9);
+        double minThroughput = workPerIteration / (sortedNanos[sortedNanos.length - 1] / 1e9);
+        double p50Millis = getPercentile(sortedNanos, 50) / 1e6;
+        double p90Millis = getPercentile(sortedNanos, 90) / 1e6;
+        double p99Millis = getPercentile(sortedNanos, 99) / 1e6;
+        double maxMillis = sortedNanos[sortedNanos.length - 1] / 1e6;
+        double allocMbPerSec = (measurement.allocatedBytes / (1024.0 * 1024.0)) / (measurement.totalNanos / 1e9);
+
+        csv.printf("%s,%s,%s,%s,%d,%d,%s,%s,%s,%s,%d,%s,%.1f,%.1f,%.3f,%.3f,%.3f,%.3f,%d,%d,%.1f,%n", options.get("label"), Instant.now(),
+            simulation, structure, workers, size, mix, executor, settings, options.get("warmup"), sortedNanos.length, unit, meanThroughput,
+            minThroughput, p50Millis, p90Millis, p99Millis, maxMillis, measurement.numGcs, measurement.gcMillis, allocMbPerSec);
+        csv.flush();
+
+        System.out.printf("%-12s %-21s %8d %8d %-8s %16.1f %10.3f %10.3f %6d %12.1f  %s%n", simulation, structure, workers, size, mix,
+            meanThroughput, p50Millis, p99Millis, measurement.numGcs, allocMbPerSec, describeSettings(settings));
+    }
+
+    // Appends a row for a configuration that failed, with no measurements and the error that it failed with, and prints the error
+    private static void reportFailure(final PrintWriter csv, final Map<String, String> options, final String simulation, final String structure,
+            final String workers, final String size, final String mix, final String executor, final String settings, final String unit,
+            final Exception error) {
+        String errorText = error.toString().replace('\n', ' ').replace("\"", "\"\"");
+
+        csv.printf("%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,,,,,,,,,,\"%s\"%n", options.get("label"), Instant.now(), simulation, structure,
+            workers, size, mix, executor, settings, options.get("warmup"), options.get("iterations"), unit, errorText);
+        csv.flush();
+
+        System.out.printf("%-12s %-21s %8s %8s %-8s failed: %s  %s%n", simulation, structure, workers, size, mix, error.toString(),
+            describeSettings(settings));
+    }
+
+    // Returns a short description of the presents' settings columns for the printed summary, leaving out every setting that
+    // is still at its default so the summary of a plain configuration stays empty
+    private static String describeSettings(final String settings) {
+        String[] columns = settings.split(",", -1);
+        StringBuilder description = new StringBuilder();
+
+        if (!columns[0].isEmpty() && !columns[0].equals("1")) {
+            description.append("insert=").append(columns[0]).append(' ');
+        }
+        if (!columns[1].isEmpty() && !columns[1].equals("1")) {
+            description.append("remove=").append(columns[1]).append(' ');
+        }
+        if (columns[2].equals("true")) {
+            description.append("index ");
+        }
+        if (!columns[3].isEmpty()) {
+            description.append("relaxed=").append(columns[3]).append(' ');
+        }
+        if (columns[4].equals("true")) {
+            description.append("metrics ");
+        }
+        if (!columns[5].isEmpty()) {
+            description.append("journal=").append(columns[5]).append(' ');
+        }
+
+        return description.toString().trim();
+    }
+
+    // Returns the nearest rank percentile of the sorted values
+    private static long getPercentile(final long[] sortedValues, final double percentile) {
+        int rank = (int) Math.ceil(percentile / 100.0 * sortedValues.length);
+        return sortedValues[Math.max(0, rank - 1)];
+    }
+
+    private static long getGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long getGcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+
+    // Keeps a running total of how many bytes every garbage collection freed from the heap. Java 17 has no way to ask how many bytes
+    // every thread (including the ones that are already gone) allocated, so the allocations are found from the heap instead:
+    // everything allocated is either still in the heap or was freed by a garbage collection
+    private static void listenForGarbageCollections() {
+        Set<String> heapPools = new HashSet<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                heapPools.add(pool.getName());
+            }
+        }
+
+        numGcNotifications.set(getGcCount());
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (!(collector instanceof NotificationEmitter)) {
+                continue;
+            }
+
+            ((NotificationEmitter) collector).addNotificationListener((Notification notification, Object handback) -> {
+                if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                    return;
+                }
+
+                GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                Map<String, MemoryUsage> before = info.getGcInfo().getMemoryUsageBeforeGc();
+                Map<String, MemoryUsage> after = info.getGcInfo().getMemoryUsageAfterGc();
+
+                long freedBytes = 0;
+                for (String pool : heapPools) {
+                    if (before.containsKey(pool) && after.containsKey(pool)) {
+                        freedBytes += before.get(pool).getUsed() - after.get(pool).getUsed();
+                    }
+                }
+
+                gcFreedBytes.addAndGet(freedBytes);
+                numGcNotifications.incrementAndGet();
+            }, null, null);
+        }
+    }
+
+    // Returns the total number of bytes allocated in the heap so far. Notifications are delivered on their own thread, so this
+    // first waits (for a bounded time) until every garbage collection that has happened so far has been counted
+    private static long getAllocatedBytes() {
+        long deadline = System.nanoTime() + GC_NOTIFICATION_WAIT_NANOS;
+        while (numGcNotifications.get() < getGcCount() && System.nanoTime() < deadline) {
+            Thread.onSpinWait();
+        }
+
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() + gcFreedBytes.get();
+    }
+}
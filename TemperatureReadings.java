@@ -1,160 +1,1382 @@
-import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.Comparator;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.PriorityQueue;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 public class TemperatureReadings {
     // Defines the number of sensors that will be recording the temperature concurrently
-    private static final int NUM_SENSORS = 8;
+    public static int NUM_SENSORS = 8;
 
     // Boolean flag that decides whether or not to record 60 temperatures for an hour or minute period of time
     // (Including this option since we can simulate an hour's worth of recording in a minute w/o wasting all that time)
     public static final boolean RECORD_HOUR = false;
 
-    public static void main(String[] args) {
-        List<ConcurrentLinkedDeque<Integer>> tempReadings; // Shared memory space that all sensors will record temperatures in
-        SensorThread[] sensors;
+    // Number of hours (or minutes) that the sensors keep recording for, with a report printed at the end of each one
+    public static int NUM_HOURS = 1;
+
+    // Decides whether the sensors sleep for a real minute/second between readings, or are driven by a scheduler in virtual time
+    // that moves straight on to the next reading (so thousands of sensors and days of readings can be simulated as fast as possible)
+    public enum ClockMode {
+        REAL_TIME,
+        VIRTUAL_TIME
+    }
+    public static ClockMode CLOCK_MODE = ClockMode.REAL_TIME;
+
+    // Decides whether each hour's report is built incrementally by the report engine as the sensors record temperatures, or by
+    // splitting the hour's readings in the buffer between the threads of a ForkJoinPool once every sensor has recorded the hour
+    public enum ReportMode {
+        INCREMENTAL,
+        FORK_JOIN
+    }
+    public static ReportMode REPORT_MODE = ReportMode.INCREMENTAL;
+
+    // How long the main thread sleeps between checks of whether or not every sensor has finished recording an hour, when the
+    // reports are built by the ForkJoinPool
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    // Length in minutes of the intervals that each hourly report finds the largest temperature difference over (at most 60)
+    public static int INTERVAL_MINUTES = 10;
+
+    // Window lengths in minutes to find the largest temperature change over (measured like the hourly reports' intervals), across all
+    // of the recorded hours, once the sensors are done.
+    // Giving any keeps an index of every minute's temperatures for the fleet and every sensor (null to not keep one)
+    public static int[] WINDOW_QUERIES = null;
+
+    // Ranges of minutes (counted from the first recorded minute, both ends included) to find the lowest and highest temperature
+    // between, once the sensors are done. Each range is answered in O(1) from the same index as the windows (null to not query any)
+    public static long[][] RANGE_QUERIES = null;
+
+    // Number of threads that drive the sensors in virtual time
+    public static int NUM_SCHEDULER_THREADS = Runtime.getRuntime().availableProcessors();
+
+    // Directory that every reading is persisted to as one memory-mapped segment file per hour (null to not persist readings).
+    // The segments can be turned back into reports afterwards with "java ReadingLogReplay <directory> [hour]"
+    public static String READING_LOG_DIR = null;
+
+    // Number of hours of temperature readings that the shared buffer holds at once. Sensors can record the next hour while
+    // the report for the previous hour is being made, and the buffer never grows no matter how many hours are recorded
+    private static final int BUFFERED_HOURS = 2;
+
+    // Reads the options given as key=value arguments, overriding the defaults above
+    private static void parseArgs(final String[] args) {
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            String option = (separator == -1) ? arg : arg.substring(0, separator);
+            String value = arg.substring(separator + 1);
 
-        // Create a list of 60 concurrent deques with each ith deque storing the temperatures
-        // recorded by all sensors at minute/second 'i' during execution
-        tempReadings = new ArrayList<>();
-        for (int i = 0; i < 60; i++) {
-            tempReadings.add(new ConcurrentLinkedDeque<>());
+            if (option.equals("sensors")) {
+                NUM_SENSORS = Integer.parseInt(value);
+            }
+            else if (option.equals("hours")) {
+                NUM_HOURS = Integer.parseInt(value);
+            }
+            else if (option.equals("clock")) {
+                CLOCK_MODE = ClockMode.valueOf(value);
+            }
+            else if (option.equals("threads")) {
+                NUM_SCHEDULER_THREADS = Integer.parseInt(value);
+            }
+            else if (option.equals("log")) {
+                READING_LOG_DIR = value;
+            }
+            else if (option.equals("report")) {
+                REPORT_MODE = ReportMode.valueOf(value);
+            }
+            else if (option.equals("interval")) {
+                INTERVAL_MINUTES = Integer.parseInt(value);
+            }
+            else if (option.equals("windows")) {
+                WINDOW_QUERIES = parseWindowQueries(value);
+            }
+            else if (option.equals("ranges")) {
+                RANGE_QUERIES = parseRangeQueries(value);
+            }
+            else {
+                throw new IllegalArgumentException("Unknown option: " + arg
+                    + " (options are sensors, hours, clock, threads, log, report, interval, windows, and ranges)");
+            }
         }
 
-        sensors = new SensorThread[NUM_SENSORS];
+        if (NUM_SENSORS < 1 || NUM_HOURS < 1 || NUM_SCHEDULER_THREADS < 1) {
+            throw new IllegalArgumentException("There must be at least 1 sensor, 1 hour, and 1 scheduler thread");
+        }
+        if (INTERVAL_MINUTES < 1 || INTERVAL_MINUTES > 60) {
+            throw new IllegalArgumentException("The interval must be between 1 and 60 minutes long, not " + INTERVAL_MINUTES);
+        }
+    }
 
-        // Initialize all sensor threads
-        for (int i = 0; i < NUM_SENSORS; i++) {
-            sensors[i] = new SensorThread(tempReadings);
+    // Parses window lengths given in minutes separated by commas (for example "5,10,30")
+    public static int[] parseWindowQueries(final String windows) {
+        String[] parts = windows.split(",");
+        int[] windowMinutes = new int[parts.length];
+
+        for (int i = 0; i < parts.length; i++) {
+            windowMinutes[i] = Integer.parseInt(parts[i]);
+            if (windowMinutes[i] < 1) {
+                throw new IllegalArgumentException("Window lengths must be at least 1 minute: " + windows);
+            }
         }
 
-        // Start each sensor thread
-        for (int i = 0; i < NUM_SENSORS; i++) {
-            sensors[i].start();
+        return windowMinutes;
+    }
+
+    // Parses ranges of minutes given as "first..last" separated by commas (for example "0..59,90..150")
+    public static long[][] parseRangeQueries(final String ranges) {
+        String[] parts = ranges.split(",");
+        long[][] rangeMinutes = new long[parts.length][];
+
+        for (int i = 0; i < parts.length; i++) {
+            int separator = parts[i].indexOf("..");
+            if (separator == -1) {
+                throw new IllegalArgumentException("Ranges must be given as first..last minute: " + ranges);
+            }
+
+            rangeMinutes[i] = new long[] {Long.parseLong(parts[i].substring(0, separator)), Long.parseLong(parts[i].substring(separator + 2))};
+            if (rangeMinutes[i][0] < 0 || rangeMinutes[i][1] < rangeMinutes[i][0]) {
+                throw new IllegalArgumentException("Ranges must start at minute 0 or later and not end before they start: " + ranges);
+            }
         }
 
-        // Join all sensors threads, so that main thread waits until all sensors finish recording all the required temperatures
-        try {
-            for (int i = 0; i < NUM_SENSORS; i++) {
-                sensors[i].join();
+        return rangeMinutes;
+    }
+
+    // Prints the lowest and highest temperature across all sensors between the minutes of each queried range, along with which
+    // sensor recorded each of them. The fleet takes one O(1) query per range and each sensor takes one more
+    private static void printRangeQueries(final TemperatureHistory history) {
+        for (long[] range : RANGE_QUERIES) {
+            long startMinute = range[0];
+            long endMinute = range[1];
+            if (endMinute >= history.getFleetIndex().getNumMinutes()) {
+                System.out.println("Minutes " + startMinute + " to " + endMinute + " were not all recorded");
+                continue;
             }
+
+            int minTemp = history.getFleetIndex().getMin(startMinute, endMinute);
+            int maxTemp = history.getFleetIndex().getMax(startMinute, endMinute);
+            int minSensor = -1;
+            int maxSensor = -1;
+            for (int sensor = 0; sensor < history.getNumSensors() && (minSensor == -1 || maxSensor == -1); sensor++) {
+                RangeIndex sensorIndex = history.getSensorIndex(sensor);
+                if (minSensor == -1 && sensorIndex.getMin(startMinute, endMinute) == minTemp) {
+                    minSensor = sensor;
+                }
+                if (maxSensor == -1 && sensorIndex.getMax(startMinute, endMinute) == maxTemp) {
+                    maxSensor = sensor;
+                }
+            }
+
+            System.out.println("From hour " + (startMinute / 60 + 1) + " minute " + (startMinute % 60) + " to hour " + (endMinute / 60 + 1)
+                + " minute " + (endMinute % 60) + ", the lowest temperature was " + minTemp + " (sensor " + minSensor
+                + ") and the highest was " + maxTemp + " (sensor " + maxSensor + ")");
+        }
+    }
+
+    // Prints the window with the largest temperature change of each queried length, for the whole fleet and for the single sensor
+    // whose largest change was the largest
+    private static void printWindowQueries(final TemperatureHistory history) {
+        for (int windowMinutes : WINDOW_QUERIES) {
+            if (windowMinutes > history.getFleetIndex().getNumMinutes()) {
+                System.out.println("No " + windowMinutes + " minute windows were recorded");
+                continue;
+            }
+
+            printLargestChange("across all sensors", history.getFleetIndex(), windowMinutes);
+
+            // Each sensor's largest change is found with two O(1) point queries per window
+            int largestSensor = 0;
+            int largestChange = -1;
+            for (int sensor = 0; sensor < history.getNumSensors(); sensor++) {
+                RangeIndex sensorIndex = history.getSensorIndex(sensor);
+                long startMinute = sensorIndex.findLargestChange(windowMinutes);
+                int change = Math.abs(sensorIndex.getChange(startMinute, startMinute + windowMinutes - 1));
+
+                if (change > largestChange) {
+                    largestSensor = sensor;
+                    largestChange = change;
+                }
+            }
+            printLargestChange("of a single sensor (sensor " + largestSensor + ")", history.getSensorIndex(largestSensor), windowMinutes);
+        }
+    }
+
+    private static void printLargestChange(final String description, final RangeIndex index, final int windowMinutes) {
+        long startMinute = index.findLargestChange(windowMinutes);
+        long endMinute = startMinute + windowMinutes - 1;
+        int change = index.getChange(startMinute, endMinute);
+
+        // An increase goes from the lowest temperature of the first minute to the highest of the last, and a decrease the other way around
+        int startTemp = (change >= 0) ? index.getMin(startMinute, startMinute) : index.getMax(startMinute, startMinute);
+        int endTemp = (change >= 0) ? index.getMax(endMinute, endMinute) : index.getMin(endMinute, endMinute);
+
+        System.out.println("The largest temperature change " + description + " over a " + windowMinutes + " minute window was " + Math.abs(change)
+            + ", starting at " + startTemp + " in hour " + (startMinute / 60 + 1) + " minute " + (startMinute % 60)
+            + " and ending at " + endTemp + " in hour " + (endMinute / 60 + 1) + " minute " + (endMinute % 60));
+    }
+
+    // Time it took to record every reading of a run, along with how many hourly reports were built and the time spent building them
+    public static class ReadingsRun {
+        public final long elapsedNanos;
+        public final long numReportsBuilt;
+        public final long reportNanos;
+
+        public ReadingsRun(final long elapsedNanos, final long numReportsBuilt, final long reportNanos) {
+            this.elapsedNanos = elapsedNanos;
+            this.numReportsBuilt = numReportsBuilt;
+            this.reportNanos = reportNanos;
+        }
+    }
+
+    public static void main(String[] args) {
+        ReadingsRun run;
+
+        parseArgs(args);
+
+        try {
+            run = recordAllReadings(true);
         }
         catch (InterruptedException e) {
             System.out.println("Error joining thread: " + e.toString());
             return;
         }
+        catch (IOException e) {
+            System.out.println("Error writing reading log " + READING_LOG_DIR + ": " + e.toString());
+            return;
+        }
+
+        // Readings are only as fast as the clock in real time, so throughput is only worth printing in virtual time
+        if (CLOCK_MODE == ClockMode.VIRTUAL_TIME) {
+            long numReadings = (long) NUM_SENSORS * NUM_HOURS * 60;
+
+            System.out.printf("Recorded %d temperatures from %d sensors over %d simulated hours in %dms (%.0f readings/s)%n",
+                numReadings, NUM_SENSORS, NUM_HOURS, TimeUnit.NANOSECONDS.toMillis(run.elapsedNanos), numReadings / (run.elapsedNanos / 1e9));
+            System.out.printf("Built %d hourly reports in %.3fms total (%.1fus per report)%n", run.numReportsBuilt, run.reportNanos / 1e6,
+                run.reportNanos / 1e3 / Math.max(1, run.numReportsBuilt));
+        }
+    }
+
+    // Runs the whole temperature reading workload once with the current settings: every sensor records NUM_HOURS hours of
+    // temperatures while each hour's report is built, printing the reports (and any window queries) out if asked to
+    public static ReadingsRun recordAllReadings(final boolean printReports) throws InterruptedException, IOException {
+        ReadingsBuffer tempReadings; // Shared memory space that all sensors will record temperatures in
+        ReportEngine reportEngine = null; // Keeps every hour's report up to date as the sensors record temperatures, if it builds them
+        ForkJoinPool reportPool = null; // Builds every hour's report out of the buffer, if the report engine does not
+        ReadingLog readingLog = null; // Persists every reading, if a directory for it was given
+        TemperatureHistory history = null; // Indexes every minute's temperatures, if any windows or ranges are queried
+        Sensor[] sensors;
+        SamplingScheduler scheduler; // Decides when each sensor takes its readings
+        long samplingPeriodMillis = (RECORD_HOUR) ? TimeUnit.MINUTES.toMillis(1) : TimeUnit.SECONDS.toMillis(1);
+
+        // Create a buffer that holds the temperature recorded by every sensor at every minute/second of the buffered hours/minutes
+        tempReadings = new ReadingsBuffer(NUM_SENSORS, BUFFERED_HOURS * 60);
+        if (WINDOW_QUERIES != null || RANGE_QUERIES != null) {
+            history = new TemperatureHistory(tempReadings);
+        }
+
+        if (READING_LOG_DIR != null) {
+            readingLog = new ReadingLog(Paths.get(READING_LOG_DIR), NUM_SENSORS, INTERVAL_MINUTES);
+        }
+
+        if (REPORT_MODE == ReportMode.FORK_JOIN) {
+            reportPool = new ForkJoinPool();
+        }
+        else {
+            reportEngine = new ReportEngine(NUM_SENSORS, BUFFERED_HOURS, INTERVAL_MINUTES, history);
+        }
+
+        sensors = new Sensor[NUM_SENSORS];
+
+        // Initialize all sensors
+        for (int i = 0; i < NUM_SENSORS; i++) {
+            sensors[i] = new Sensor(i, tempReadings, reportEngine, readingLog, NUM_HOURS * 60);
+        }
+
+        if (CLOCK_MODE == ClockMode.VIRTUAL_TIME) {
+            scheduler = new VirtualTimeScheduler(sensors, samplingPeriodMillis, Math.min(NUM_SCHEDULER_THREADS, NUM_SENSORS));
+        }
+        else {
+            scheduler = new RealTimeScheduler(sensors, samplingPeriodMillis);
+        }
+
+        // Start the sensors taking their readings
+        long startTime = System.nanoTime();
+        long numReportsBuilt = 0;
+        long reportNanos = 0;
+        scheduler.start();
+
+        // Print each hour's report as soon as it has been built, then let the sensors reuse that hour's space in the buffer
+        try {
+            for (int hour = 0; hour < NUM_HOURS; hour++) {
+                HourlyReport report;
+
+                if (reportPool != null) {
+                    // Wait until every sensor has recorded the whole hour, then split the hour's readings between the pool's threads
+                    while (!tempReadings.isRecorded((hour + 1) * 60L)) {
+                        LockSupport.parkNanos(POLL_NANOS);
+                    }
+
+                    long reportStartTime = System.nanoTime();
+                    report = ParallelReportTask.buildReport(reportPool, tempReadings, hour, INTERVAL_MINUTES, history);
+                    reportNanos += System.nanoTime() - reportStartTime;
+                    numReportsBuilt++;
+                }
+                else {
+                    report = reportEngine.takeReport();
+                }
+
+                if (printReports) {
+                    if (NUM_HOURS > 1) {
+                        System.out.println("Report for hour " + (hour + 1) + ":");
+                    }
+                    report.print();
+                }
+
+                tempReadings.release((hour + 1) * 60L);
+
+                // Every reading of the hour was written before its report was built, so the hour's segment is complete
+                if (readingLog != null) {
+                    readingLog.finishHour(hour);
+                }
+            }
+
+            // Wait until all sensors finish recording all the required temperatures
+            scheduler.awaitFinished();
+        }
+        finally {
+            if (reportPool != null) {
+                reportPool.shutdown();
+            }
+        }
+
+        long elapsedNanos = System.nanoTime() - startTime;
+        if (reportEngine != null) {
+            numReportsBuilt = reportEngine.getNumReportsBuilt();
+            reportNanos = reportEngine.getReportNanos();
+        }
+
+        if (history != null && printReports) {
+            if (WINDOW_QUERIES != null) {
+                printWindowQueries(history);
+            }
+            if (RANGE_QUERIES != null) {
+                printRangeQueries(history);
+            }
+        }
+
+        if (readingLog != null) {
+            readingLog.close();
+        }
+
+        return new ReadingsRun(elapsedNanos, numReportsBuilt, reportNanos);
+    }
+}
+
+// Shared memory space that the sensors record their temperatures in. It is a preallocated ring of primitive ints with one slot for
+// every sensor at every minute/second of the buffered time, so recording a temperature never allocates. Each sensor owns its own
+// contiguous run of slots and its own counter of how many temperatures it has recorded, so sensors never write to the same memory
+// or contend with each other. A sensor writes its temperature into its slot and then publishes it by advancing its counter with a
+// release store, and readers read the counter with an acquire load before reading any of the slots it covers. Once the readers are
+// done with a range of minutes they release it, which lets the sensors record over those slots again; a sensor that gets a whole
+// ring ahead of the readers waits for them instead of overwriting temperatures that have not been read yet.
+class ReadingsBuffer {
+    // Number of longs between the counters of neighboring sensors, so that each sensor's counter is on its own cache line
+    private static final int COUNTER_PADDING = 8;
+
+    // How long a sensor sleeps while it waits for the readers to release a slot it needs
+    private static final long FULL_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final int numSensors;
+    private final int capacityMinutes;
+    private final int[] readings;
+    private final AtomicLongArray numRecorded;
+    private final AtomicLong numReleased;
+
+    public ReadingsBuffer(final int numSensors, final int capacityMinutes) {
+        this.numSensors = numSensors;
+        this.capacityMinutes = capacityMinutes;
+        this.readings = new int[numSensors * capacityMinutes];
+        this.numRecorded = new AtomicLongArray(numSensors * COUNTER_PADDING);
+        this.numReleased = new AtomicLong(0);
+    }
+
+    public int getNumSensors() {
+        return this.numSensors;
+    }
+
+    // Records the sensor's next temperature. Must only ever be called by the thread of the sensor that owns these slots
+    public void record(final int sensor, final int temp) {
+        long minute = this.numRecorded.get(sensor * COUNTER_PADDING);
+
+        // Wait until the readers are done with the temperatures that were recorded in this slot a whole ring ago
+        while (minute - this.numReleased.get() >= this.capacityMinutes) {
+            LockSupport.parkNanos(FULL_WAIT_NANOS);
+        }
+
+        this.readings[sensor * this.capacityMinutes + (int) (minute % this.capacityMinutes)] = temp;
+        this.numRecorded.setRelease(sensor * COUNTER_PADDING, minute + 1);
+    }
+
+    // Returns whether or not every sensor has recorded its temperatures for every minute before the given minute. Once this
+    // returns true, all of those temperatures can be read until they are released
+    public boolean isRecorded(final long endMinute) {
+        for (int sensor = 0; sensor < this.numSensors; sensor++) {
+            if (this.numRecorded.getAcquire(sensor * COUNTER_PADDING) < endMinute) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns the temperature the sensor recorded at the given minute, which must be recorded and not released yet
+    public int getReading(final long minute, final int sensor) {
+        return this.readings[sensor * this.capacityMinutes + (int) (minute % this.capacityMinutes)];
+    }
+
+    // Lets the sensors record over every minute before the given minute
+    public void release(final long endMinute) {
+        this.numReleased.set(endMinute);
+    }
+}
+
+// Builds each hour's report incrementally as the sensors record temperatures, so a report is ready the moment the last temperature
+// of the hour is recorded instead of needing a pass over all of the hour's readings afterwards. Every reading costs O(1):
+//     - Each sensor counts its temperatures in its own histogram over the fixed range of possible temperatures (one per buffered hour),
+//       so the top 5 highest and lowest temperatures are found by scanning the histograms from either end, without any heaps.
+//     - Each minute has one packed word with the number of sensors that have recorded it so far and the min and max temperature
+//       recorded at that minute, which sensors fold their temperatures into with a compare-and-set. The word is stamped with the
+//       minute's lap around the buffered hours, so the first sensor to record a minute in a new lap starts it over.
+//     - The sensor that records the last temperature of a minute compares that minute against the first minute of the 10 minute
+//       interval that ends at it, and folds the result into the hour's largest temperature difference, just like the original pass
+//       over every 10 minute interval did.
+//     - The sensor that records the last temperature of an hour builds the hour's report and hands it over to the reader.
+// A sensor records its minutes in order, so whichever sensor closes a minute has already closed every earlier minute it was the last
+// to record, and every interval of an hour has been compared by the time the hour's last minute closes.
+class ReportEngine {
+    // Number of different temperatures that sensors can record
+    static final int NUM_TEMPS = Sensor.MAX_TEMP - Sensor.MIN_TEMP + 1;
+
+    // Number of highest and lowest temperatures in each report
+    private static final int NUM_TOP_TEMPS = 5;
+
+    private final int numSensors;
+    private final int numHourSlots;
+    private final int capacityMinutes;
+
+    // Length of the intervals that the largest temperature difference is found over
+    private final int intervalMinutes;
+
+    // Index that every minute is added to once it closes (null if there is none)
+    private final TemperatureHistory history;
+
+    // Each sensor's own histograms of the temperatures it recorded, one run of NUM_TEMPS counts per buffered hour
+    private final int[][] sensorHistograms;
+
+    // Packed summary of each buffered minute: lap (upper 32 bits), number of sensors recorded (16 bits), max and min temperatures (8 bits each)
+    private final AtomicLongArray minuteSummaries;
+
+    // Packed largest temperature difference of each buffered hour (see packTempDiff), which only ever grows
+    private final AtomicLongArray largestTempDiffs;
+
+    private final BlockingQueue<HourlyReport> completedReports;
+
+    // Number of reports built as hours closed and the total time spent building them, only ever updated by the sensor closing an hour
+    private final AtomicLong numReportsBuilt;
+    private final AtomicLong reportNanos;
+
+    public ReportEngine(final int numSensors, final int numHourSlots, final int intervalMinutes, final TemperatureHistory history) {
+        // The number of sensors that recorded a minute must fit in its packed summary
+        if (numSensors > 0xFFFF) {
+            throw new IllegalArgumentException("The report engine supports at most " + 0xFFFF + " sensors, not " + numSensors);
+        }
+
+        this.numSensors = numSensors;
+        this.numHourSlots = numHourSlots;
+        this.capacityMinutes = numHourSlots * 60;
+        this.intervalMinutes = intervalMinutes;
+        this.history = history;
+        this.sensorHistograms = new int[numSensors][numHourSlots * NUM_TEMPS];
+        this.minuteSummaries = new AtomicLongArray(this.capacityMinutes);
+        this.largestTempDiffs = new AtomicLongArray(numHourSlots);
+        this.completedReports = new LinkedBlockingQueue<>();
+        this.numReportsBuilt = new AtomicLong(0);
+        this.reportNanos = new AtomicLong(0);
+
+        // Start every minute at an impossible lap so that the first sensor to record it always starts it over
+        for (int i = 0; i < this.capacityMinutes; i++) {
+            this.minuteSummaries.set(i, packMinuteSummary(0xFFFFFFFFL, 0, 0, 0));
+        }
+    }
+
+    private static long packMinuteSummary(final long lap, final int numRecorded, final int maxTemp, final int minTemp) {
+        return (lap << 32) | ((long) numRecorded << 16) | ((long) (maxTemp - Sensor.MIN_TEMP) << 8) | (minTemp - Sensor.MIN_TEMP);
+    }
+
+    private static long getLap(final long summary) {
+        return summary >>> 32;
+    }
+
+    private static int getNumRecorded(final long summary) {
+        return (int) (summary >>> 16) & 0xFFFF;
+    }
+
+    private static int getMaxTemp(final long summary) {
+        return (int) (summary >>> 8 & 0xFF) + Sensor.MIN_TEMP;
+    }
+
+    private static int getMinTemp(final long summary) {
+        return (int) (summary & 0xFF) + Sensor.MIN_TEMP;
+    }
+
+    // Packs a temperature difference so that comparing packed values picks the same difference the original pass did: later hours
+    // are always larger, then larger differences, then intervals that start earlier, then an increase over a decrease in the same interval
+    static long packTempDiff(final long hour, final int startMinute, final boolean increase, final int startTemp, final int endTemp) {
+        return (hour << 31) | ((long) Math.abs(endTemp - startTemp) << 23) | ((long) (63 - startMinute) << 17) | ((increase) ? 1L << 16 : 0)
+            | ((long) (startTemp - Sensor.MIN_TEMP) << 8) | (endTemp - Sensor.MIN_TEMP);
+    }
+
+    // Records the temperature the sensor recorded at the given minute. Must only ever be called by the sensor's own thread, in order of minutes
+    public void record(final int sensor, final long minute, final int temp) {
+        int hourSlot = (int) ((minute / 60) % this.numHourSlots);
+        int[] histogram = this.sensorHistograms[sensor];
+
+        // The sensor starts its histogram for this hour over once it starts recording a new hour in the same slot
+        if (minute % 60 == 0) {
+            Arrays.fill(histogram, hourSlot * NUM_TEMPS, (hourSlot + 1) * NUM_TEMPS, 0);
+        }
+        histogram[hourSlot * NUM_TEMPS + temp - Sensor.MIN_TEMP]++;
+
+        // Fold the temperature into this minute's summary, starting the minute over if it was last used in an earlier lap
+        int minuteSlot = (int) (minute % this.capacityMinutes);
+        long lap = minute / this.capacityMinutes;
+        long summary, updatedSummary;
+        do {
+            summary = this.minuteSummaries.get(minuteSlot);
+            if (getLap(summary) != lap) {
+                updatedSummary = packMinuteSummary(lap, 1, temp, temp);
+            }
+            else {
+                updatedSummary = packMinuteSummary(lap, getNumRecorded(summary) + 1, Math.max(getMaxTemp(summary), temp),
+                    Math.min(getMinTemp(summary), temp));
+            }
+        } while (!this.minuteSummaries.compareAndSet(minuteSlot, summary, updatedSummary));
+
+        if (getNumRecorded(updatedSummary) == this.numSensors) {
+            closeMinute(minute, updatedSummary);
+        }
+    }
+
+    // Called by the sensor that recorded the last temperature of the minute
+    private void closeMinute(final long minute, final long endSummary) {
+        int minuteOfHour = (int) (minute % 60);
+        long hour = minute / 60;
+
+        // Minutes close in order, so the index gets every minute in order
+        if (this.history != null) {
+            this.history.appendMinute(minute, getMinTemp(endSummary), getMaxTemp(endSummary));
+        }
+
+        // Compare this minute against the start of the interval that ends at it
+        if (minuteOfHour >= this.intervalMinutes - 1) {
+            int startMinute = minuteOfHour - (this.intervalMinutes - 1);
+            long startSummary = this.minuteSummaries.get((int) ((minute - (this.intervalMinutes - 1)) % this.capacityMinutes));
+            int hourSlot = (int) (hour % this.numHourSlots);
+
+            // Same as the original pass, a difference only counts if it is not 0
+            int increase = getMaxTemp(endSummary) - getMinTemp(startSummary);
+            if (increase != 0) {
+                this.largestTempDiffs.accumulateAndGet(hourSlot,
+                    packTempDiff(hour, startMinute, true, getMinTemp(startSummary), getMaxTemp(endSummary)), Math::max);
+            }
+
+            int decrease = getMinTemp(endSummary) - getMaxTemp(startSummary);
+            if (decrease != 0) {
+                this.largestTempDiffs.accumulateAndGet(hourSlot,
+                    packTempDiff(hour, startMinute, false, getMaxTemp(startSummary), getMinTemp(endSummary)), Math::max);
+            }
+        }
+
+        if (minuteOfHour == 59) {
+            long startTime = System.nanoTime();
+            HourlyReport report = buildReport(hour);
+            this.reportNanos.addAndGet(System.nanoTime() - startTime);
+            this.numReportsBuilt.incrementAndGet();
+
+            this.completedReports.add(report);
+        }
+    }
+
+    // Builds the report for the given hour out of the histograms and the largest temperature difference found so far. This costs the
+    // same no matter how many temperatures were recorded, so it can also be called in the middle of the hour to see the report so far
+    public HourlyReport buildReport(final long hour) {
+        int hourSlot = (int) (hour % this.numHourSlots);
+        int[] tempCounts = new int[NUM_TEMPS];
+        for (int[] histogram : this.sensorHistograms) {
+            for (int i = 0; i < NUM_TEMPS; i++) {
+                tempCounts[i] += histogram[hourSlot * NUM_TEMPS + i];
+            }
+        }
+
+        return createReport(hour, this.intervalMinutes, tempCounts, this.largestTempDiffs.get(hourSlot));
+    }
+
+    // Creates the report for the given hour out of how many times each temperature was recorded during it and its packed largest
+    // temperature difference. Differences from earlier hours are always smaller than any difference of this hour, so they are ignored
+    static HourlyReport createReport(final long hour, final int intervalMinutes, final int[] tempCounts, final long tempDiff) {
+        HourlyReport report = new HourlyReport(hour, intervalMinutes, NUM_TOP_TEMPS);
+
+        // Take the highest temperatures from the top of the histogram and the lowest temperatures from the bottom
+        for (int i = NUM_TEMPS - 1, count = 0; i >= 0 && report.numHighestTemps < NUM_TOP_TEMPS; count++) {
+            if (count >= tempCounts[i]) {
+                i--;
+                count = -1;
+                continue;
+            }
+            report.highestTemps[report.numHighestTemps++] = i + Sensor.MIN_TEMP;
+        }
+        for (int i = 0, count = 0; i < NUM_TEMPS && report.numLowestTemps < NUM_TOP_TEMPS; count++) {
+            if (count >= tempCounts[i]) {
+                i++;
+                count = -1;
+                continue;
+            }
+            report.lowestTemps[report.numLowestTemps++] = i + Sensor.MIN_TEMP;
+        }
+
+        if ((tempDiff >>> 31) == hour) {
+            report.startTemp = (int) (tempDiff >>> 8 & 0xFF) + Sensor.MIN_TEMP;
+            report.endTemp = (int) (tempDiff & 0xFF) + Sensor.MIN_TEMP;
+            report.largestTempDiff = report.endTemp - report.startTemp;
+        }
+
+        return report;
+    }
+
+    // Waits until the next hour's report is complete and returns it
+    public HourlyReport takeReport() throws InterruptedException {
+        return this.completedReports.take();
+    }
+
+    public long getNumReportsBuilt() {
+        return this.numReportsBuilt.get();
+    }
+
+    public long getReportNanos() {
+        return this.reportNanos.get();
+    }
+}
+
+// Builds an hour's report out of the readings in the buffer in parallel, as an alternative to the report engine for when the readings
+// are already recorded. The hour's readings are split in half by sensors (or by minutes once a task is down to one sensor) until
+// each task has few enough readings, and each of those tasks counts its temperatures in a histogram and finds the min and max
+// temperature of each of its minutes. Partial results are merged on the way back up by adding the histograms and taking the min
+// and max of every minute, which costs the same no matter how many readings each side covered. The intervals are then
+// compared over the merged minutes exactly like the report engine compares them, so both build the same report
+class ParallelReportTask extends RecursiveTask<ParallelReportTask.PartialReport> {
+    private static final long serialVersionUID = 1L;
 
-        PriorityQueue<Integer> minTemps, maxTemps;
+    // Tasks with at most this many readings are not split any further
+    private static final int MAX_LEAF_READINGS = 1 << 14;
 
-        // Create two minHeaps that will keep track of the highest and lowest temperatures recorded
-        minTemps = new PriorityQueue<>();
-        maxTemps = new PriorityQueue<>(Comparator.reverseOrder());
+    // Histogram of the temperatures that a task covers, and the min and max temperature of each minute of the hour that it covers
+    static class PartialReport {
+        private final int[] tempCounts = new int[ReportEngine.NUM_TEMPS];
+        private final int[] minuteMinTemps = new int[60];
+        private final int[] minuteMaxTemps = new int[60];
 
-        // Go through all temperatures recorded by sensors and add each to the min/max-Heaps
-        for (int i = 0; i < tempReadings.size(); i++) {
-            for (Integer tempReading : tempReadings.get(i)) {
-                minTemps.add(tempReading);
-                maxTemps.add(tempReading);
+        private PartialReport() {
+            Arrays.fill(this.minuteMinTemps, Integer.MAX_VALUE);
+            Arrays.fill(this.minuteMaxTemps, Integer.MIN_VALUE);
+        }
+
+        private void merge(final PartialReport other) {
+            for (int i = 0; i < ReportEngine.NUM_TEMPS; i++) {
+                this.tempCounts[i] += other.tempCounts[i];
+            }
+            for (int i = 0; i < 60; i++) {
+                this.minuteMinTemps[i] = Math.min(this.minuteMinTemps[i], other.minuteMinTemps[i]);
+                this.minuteMaxTemps[i] = Math.max(this.minuteMaxTemps[i], other.minuteMaxTemps[i]);
             }
         }
+    }
 
-        int startTempAns = -1, endTempAns = -1, largestTempDiff = -1;
-        largestTempDiff = 0;
+    private final ReadingsBuffer tempReadings;
+    private final long hourStartMinute;
+    private final int startSensor;
+    private final int endSensor;
+    private final int startMinute;
+    private final int endMinute;
+
+    // Covers the sensors from startSensor up to endSensor at the minutes of the hour from startMinute up to endMinute
+    private ParallelReportTask(final ReadingsBuffer tempReadings, final long hourStartMinute, final int startSensor, final int endSensor,
+                               final int startMinute, final int endMinute) {
+        this.tempReadings = tempReadings;
+        this.hourStartMinute = hourStartMinute;
+        this.startSensor = startSensor;
+        this.endSensor = endSensor;
+        this.startMinute = startMinute;
+        this.endMinute = endMinute;
+    }
 
-        // Iterate through all possible 10 min/sec intervals that temperatures were recorded
-        for (int i = 10; i <= tempReadings.size(); i++) {
-            int maxStartTemp = Integer.MIN_VALUE;
-            int minStartTemp = Integer.MAX_VALUE;
+    // Builds the report for the given hour, which every sensor must have recorded and which must not be released yet, and adds the
+    // hour's minutes to the index if there is one
+    public static HourlyReport buildReport(final ForkJoinPool pool, final ReadingsBuffer tempReadings, final long hour,
+                                           final int intervalMinutes, final TemperatureHistory history) {
+        PartialReport partial = pool.invoke(new ParallelReportTask(tempReadings, hour * 60, 0, tempReadings.getNumSensors(), 0, 60));
 
-            // Find the min and max temperature recorded by all sensors at the start of this interval
-            for (Integer startTemp : tempReadings.get(i - 10)) {
-                maxStartTemp = Math.max(maxStartTemp, startTemp);
-                minStartTemp = Math.min(minStartTemp, startTemp);
+        if (history != null) {
+            for (int minute = 0; minute < 60; minute++) {
+                history.appendMinute(hour * 60 + minute, partial.minuteMinTemps[minute], partial.minuteMaxTemps[minute]);
             }
-            
-            int maxEndTemp = Integer.MIN_VALUE;
-            int minEndTemp = Integer.MAX_VALUE;
+        }
+
+        // Compare the first and last minute of every interval, keeping the largest difference the same way the report engine does
+        long largestTempDiff = 0;
+        for (int startMinute = 0; startMinute + intervalMinutes <= 60; startMinute++) {
+            int endMinute = startMinute + intervalMinutes - 1;
+            int startMin = partial.minuteMinTemps[startMinute];
+            int startMax = partial.minuteMaxTemps[startMinute];
+            int endMin = partial.minuteMinTemps[endMinute];
+            int endMax = partial.minuteMaxTemps[endMinute];
 
-            // Find the min and max temperature recorded by all sensors at the end of the interval
-            for (Integer endTemp : tempReadings.get(i - 1)) {
-                maxEndTemp = Math.max(maxEndTemp, endTemp);
-                minEndTemp = Math.min(minEndTemp, endTemp);
+            if (endMax - startMin != 0) {
+                largestTempDiff = Math.max(largestTempDiff, ReportEngine.packTempDiff(hour, startMinute, true, startMin, endMax));
+            }
+            if (endMin - startMax != 0) {
+                largestTempDiff = Math.max(largestTempDiff, ReportEngine.packTempDiff(hour, startMinute, false, startMax, endMin));
             }
+        }
+
+        return ReportEngine.createReport(hour, intervalMinutes, partial.tempCounts, largestTempDiff);
+    }
 
-            // If the largest temperature increase across this interval is the greatest interval change found so far,
-            // then record this difference
-            if (Math.abs(maxEndTemp - minStartTemp) > Math.abs(largestTempDiff)) {
-                largestTempDiff = maxEndTemp - minStartTemp;
-                startTempAns = minStartTemp;
-                endTempAns = maxEndTemp;
+    @Override
+    protected PartialReport compute() {
+        int numSensors = this.endSensor - this.startSensor;
+        int numMinutes = this.endMinute - this.startMinute;
+
+        if (numSensors * numMinutes <= MAX_LEAF_READINGS) {
+            return computeDirectly();
+        }
+
+        ParallelReportTask left, right;
+        if (numSensors > 1) {
+            int midSensor = this.startSensor + numSensors / 2;
+            left = new ParallelReportTask(this.tempReadings, this.hourStartMinute, this.startSensor, midSensor, this.startMinute, this.endMinute);
+            right = new ParallelReportTask(this.tempReadings, this.hourStartMinute, midSensor, this.endSensor, this.startMinute, this.endMinute);
+        }
+        else {
+            int midMinute = this.startMinute + numMinutes / 2;
+            left = new ParallelReportTask(this.tempReadings, this.hourStartMinute, this.startSensor, this.endSensor, this.startMinute, midMinute);
+            right = new ParallelReportTask(this.tempReadings, this.hourStartMinute, this.startSensor, this.endSensor, midMinute, this.endMinute);
+        }
+
+        left.fork();
+        PartialReport partial = right.compute();
+        partial.merge(left.join());
+        return partial;
+    }
+
+    // Goes through every reading the task covers, one sensor at a time since each sensor's readings are next to each other in the buffer
+    private PartialReport computeDirectly() {
+        PartialReport partial = new PartialReport();
+
+        for (int sensor = this.startSensor; sensor < this.endSensor; sensor++) {
+            for (int minute = this.startMinute; minute < this.endMinute; minute++) {
+                int temp = this.tempReadings.getReading(this.hourStartMinute + minute, sensor);
+
+                partial.tempCounts[temp - Sensor.MIN_TEMP]++;
+                partial.minuteMinTemps[minute] = Math.min(partial.minuteMinTemps[minute], temp);
+                partial.minuteMaxTemps[minute] = Math.max(partial.minuteMaxTemps[minute], temp);
             }
+        }
+
+        return partial;
+    }
+}
+
+// Range-query index over the min and max temperature of every minute of a series of temperatures, built one minute at a time as a
+// sparse table. Level k holds the min and max of every run of 2^k minutes, so the min and max between any two minutes is found in
+// O(1) by combining the two (possibly overlapping) runs of the largest power of 2 that fit between them. Adding a minute only adds
+// the one run on each level that ends at it, which costs O(log n). The min and max are packed into a char per run, since they both
+// fit in a byte once shifted by the lowest possible temperature. Each level grows by doubling, so the index can keep growing for
+// as long as the sensors keep recording.
+// All methods are synchronized so that queries can be made while the index is still being added to
+class RangeIndex {
+    private static final int INITIAL_CAPACITY = 64;
+
+    // runs[k][i] is the packed min and max of the minutes from i up to i + 2^k
+    private char[][] runs;
+    private int numLevels;
+    private long numMinutes;
+
+    public RangeIndex() {
+        this.runs = new char[1][INITIAL_CAPACITY];
+        this.numLevels = 1;
+        this.numMinutes = 0;
+    }
+
+    private static char pack(final int minTemp, final int maxTemp) {
+        return (char) (((maxTemp - Sensor.MIN_TEMP) << 8) | (minTemp - Sensor.MIN_TEMP));
+    }
+
+    private static char combine(final char a, final char b) {
+        return (char) (Math.max(a & 0xFF00, b & 0xFF00) | Math.min(a & 0xFF, b & 0xFF));
+    }
+
+    public synchronized long getNumMinutes() {
+        return this.numMinutes;
+    }
+
+    // Adds the next minute's min and max temperature to the end of the index
+    public synchronized void append(final int minTemp, final int maxTemp) {
+        int minute = Math.toIntExact(this.numMinutes);
+
+        if (minute == this.runs[0].length) {
+            for (int k = 0; k < this.numLevels; k++) {
+                this.runs[k] = Arrays.copyOf(this.runs[k], minute * 2);
+            }
+        }
+
+        // Start a new level once there are enough minutes for its first run
+        if ((2L << (this.numLevels - 1)) <= minute + 1) {
+            this.runs = Arrays.copyOf(this.runs, this.numLevels + 1);
+            this.runs[this.numLevels] = new char[this.runs[0].length];
+            this.numLevels++;
+        }
+
+        this.runs[0][minute] = pack(minTemp, maxTemp);
+        for (int k = 1; k < this.numLevels; k++) {
+            int start = minute - (1 << k) + 1;
+            this.runs[k][start] = combine(this.runs[k - 1][start], this.runs[k - 1][start + (1 << (k - 1))]);
+        }
+
+        this.numMinutes++;
+    }
+
+    // Returns the packed min and max of the minutes from startMinute through endMinute (inclusive), which must both be in the index
+    private char query(final long startMinute, final long endMinute) {
+        if (startMinute < 0 || endMinute < startMinute || endMinute >= this.numMinutes) {
+            throw new IndexOutOfBoundsException("Minutes " + startMinute + " to " + endMinute + " are not all in the index of " + this.numMinutes + " minutes");
+        }
+
+        int k = 63 - Long.numberOfLeadingZeros(endMinute - startMinute + 1);
+        return combine(this.runs[k][(int) startMinute], this.runs[k][(int) (endMinute - (1 << k) + 1)]);
+    }
+
+    public synchronized int getMin(final long startMinute, final long endMinute) {
+        return (query(startMinute, endMinute) & 0xFF) + Sensor.MIN_TEMP;
+    }
 
-            // If the largest temperature decrease across this interval is the greatest interval change found so far,
-            // then record this difference
-            if (Math.abs(minEndTemp - maxStartTemp) > Math.abs(largestTempDiff)) {
-                largestTempDiff = minEndTemp - maxStartTemp;
-                startTempAns = maxStartTemp;
-                endTempAns = minEndTemp;
+    public synchronized int getMax(final long startMinute, final long endMinute) {
+        return (query(startMinute, endMinute) >>> 8) + Sensor.MIN_TEMP;
+    }
+
+    // Returns the largest change in temperature from the first to the last minute of a window, measured the same way as the
+    // intervals of the hourly reports: positive for an increase from the first minute's min to the last minute's max, and negative
+    // for a decrease from the first minute's max to the last minute's min, preferring the increase when both are as large. Both
+    // minutes are single point queries, so this costs O(1)
+    public synchronized int getChange(final long startMinute, final long endMinute) {
+        char start = query(startMinute, startMinute);
+        char end = query(endMinute, endMinute);
+        int increase = (end >>> 8) - (start & 0xFF);
+        int decrease = (start >>> 8) - (end & 0xFF);
+
+        return (increase >= decrease) ? increase : -decrease;
+    }
+
+    // Returns the first minute of the window of the given length with the largest temperature change (see getChange), preferring
+    // the earliest window on ties. Every window costs O(1), so any length can be asked for without rescanning the readings
+    public synchronized long findLargestChange(final int windowMinutes) {
+        long largestStart = -1;
+        int largestChange = -1;
+
+        for (long start = 0; start + windowMinutes <= this.numMinutes; start++) {
+            int change = Math.abs(getChange(start, start + windowMinutes - 1));
+
+            if (change > largestChange) {
+                largestStart = start;
+                largestChange = change;
             }
         }
 
+        return largestStart;
+    }
+}
+
+// Every minute's temperatures indexed for range queries, both across the whole fleet and for each sensor on its own. It is added to
+// one minute at a time, in order, by whichever thread closes the minute (so every sensor's reading of the minute is in the buffer).
+// Every sensor's index costs about 2 * log2(minutes) bytes per minute, so this is meant for fleets and histories that fit in memory
+class TemperatureHistory {
+    private final ReadingsBuffer tempReadings;
+    private final RangeIndex fleetIndex;
+    private final RangeIndex[] sensorIndexes;
+
+    public TemperatureHistory(final ReadingsBuffer tempReadings) {
+        this.tempReadings = tempReadings;
+        this.fleetIndex = new RangeIndex();
+        this.sensorIndexes = new RangeIndex[tempReadings.getNumSensors()];
+        for (int i = 0; i < this.sensorIndexes.length; i++) {
+            this.sensorIndexes[i] = new RangeIndex();
+        }
+    }
+
+    // Adds the next minute, given the min and max temperature across the fleet, and reads each sensor's own temperature from the buffer
+    public void appendMinute(final long minute, final int minTemp, final int maxTemp) {
+        this.fleetIndex.append(minTemp, maxTemp);
+
+        for (int sensor = 0; sensor < this.sensorIndexes.length; sensor++) {
+            int temp = this.tempReadings.getReading(minute, sensor);
+            this.sensorIndexes[sensor].append(temp, temp);
+        }
+    }
+
+    public int getNumSensors() {
+        return this.sensorIndexes.length;
+    }
+
+    public RangeIndex getFleetIndex() {
+        return this.fleetIndex;
+    }
+
+    public RangeIndex getSensorIndex(final int sensor) {
+        return this.sensorIndexes[sensor];
+    }
+}
+
+// Top 5 highest and lowest temperatures and the largest temperature difference over an interval of an hour
+class HourlyReport {
+    public final long hour;
+    public final int intervalMinutes;
+    public final int[] highestTemps;
+    public final int[] lowestTemps;
+    public int numHighestTemps;
+    public int numLowestTemps;
+
+    // If no temperature difference was found, these stay the same as the original pass's initial values
+    public int largestTempDiff = 0;
+    public int startTemp = -1;
+    public int endTemp = -1;
+
+    public HourlyReport(final long hour, final int intervalMinutes, final int numTopTemps) {
+        this.hour = hour;
+        this.intervalMinutes = intervalMinutes;
+        this.highestTemps = new int[numTopTemps];
+        this.lowestTemps = new int[numTopTemps];
+    }
+
+    public void print() {
         System.out.print("Top 5 highest temperatures recorded this hour: ");
-        // Get the top 5 highest temperatures stored by the maxHeap
-        for (int i = 0; i < 5; i++) {
-            System.out.print(maxTemps.poll() + ((i == 4) ? "\n" : ", "));
+        for (int i = 0; i < this.numHighestTemps; i++) {
+            System.out.print(this.highestTemps[i] + ((i == this.numHighestTemps - 1) ? "\n" : ", "));
         }
 
         System.out.print("Top 5 lowest temperatures recorded this hour: ");
-        // Get the top 5 lowest temperatures stored by the minHeap
-        for (int i = 0; i < 5; i++) {
-            System.out.print(minTemps.poll() + ((i == 4) ? "\n" : ", "));
+        for (int i = 0; i < this.numLowestTemps; i++) {
+            System.out.print(this.lowestTemps[i] + ((i == this.numLowestTemps - 1) ? "\n" : ", "));
         }
 
-        System.out.println("The largest temperature difference observed over a 10 minute interval was " + largestTempDiff + ", starting at " + startTempAns + " and ending at " + endTempAns);
+        System.out.println("The largest temperature difference observed over a " + this.intervalMinutes + " minute interval was " + this.largestTempDiff + ", starting at " + this.startTemp + " and ending at " + this.endTemp);
     }
 }
 
-class SensorThread extends Thread {
+// A temperature sensor, which records a reading each time its scheduler tells it to. Only one thread at a time ever takes a sensor's readings
+class Sensor {
     // Defines the possible range of temperatures that the sensor can record
-    private static final int MAX_TEMP = 70;
-    private static final int MIN_TEMP = -100;
+    public static final int MAX_TEMP = 70;
+    public static final int MIN_TEMP = -100;
 
-    // Shared memory space that the sensor will add its recorded temperatures to
-    private List<ConcurrentLinkedDeque<Integer>> tempReadings;
+    // Shared memory space that the sensor will add its recorded temperatures to, and this sensor's index in it
+    private final ReadingsBuffer tempReadings;
+    private final int sensorId;
 
-    public SensorThread(List<ConcurrentLinkedDeque<Integer>> tempReadings) {
+    // Report engine that every recorded temperature is also fed into (null if the reports are built out of the buffer instead)
+    private final ReportEngine reportEngine;
+
+    // Log that every recorded temperature is persisted to (null if readings are not persisted), and this sensor's view of the
+    // current hour's segment in it
+    private final ReadingLog readingLog;
+    private ByteBuffer logSegment;
+
+    // Number of temperatures that the sensor records before it finishes, and how many it has recorded so far
+    private final int numReadings;
+    private int currReading;
+
+    public Sensor(final int sensorId, final ReadingsBuffer tempReadings, final ReportEngine reportEngine, final ReadingLog readingLog,
+                  final int numReadings) {
+        this.sensorId = sensorId;
         this.tempReadings = tempReadings;
+        this.reportEngine = reportEngine;
+        this.readingLog = readingLog;
+        this.numReadings = numReadings;
+        this.currReading = 0;
     }
 
-    @Override
-    public void run() {
-        int currReading = 0;
+    public int getSensorId() {
+        return this.sensorId;
+    }
 
-        // Iterate through each min/sec of the hour/min
-        while (currReading < 60) {
-            // Record sensor's current temperature at this minute/second
-            int currTemp = recordTemp();
+    public boolean isFinished() {
+        return this.currReading >= this.numReadings;
+    }
 
-            // Add this sensor's recorded temperature to the respective concurrent deque
-            // for this min/sec in the shared memory space
-            this.tempReadings.get(currReading++).add(currTemp);
+    // Records the sensor's temperature at its next minute/second
+    public void recordReading() {
+        int currTemp = recordTemp();
 
-            // Wait for a minute/second until sensor is ready to take another reading
-            try {
-                Thread.sleep((TemperatureReadings.RECORD_HOUR) ? TimeUnit.MINUTES.toMillis(1) : TimeUnit.SECONDS.toMillis(1));
+        // Persist the temperature first, so it is in the log before the report that includes it can be built. Only moving on to
+        // a new hour's segment can make a syscall, writing a temperature is just a store into the mapped memory
+        if (this.readingLog != null) {
+            if (this.currReading % 60 == 0) {
+                this.logSegment = this.readingLog.openSegment(this.currReading / 60);
             }
-            catch (InterruptedException e) {
-                e.printStackTrace();
+            if (this.logSegment != null) {
+                this.readingLog.write(this.logSegment, this.currReading % 60, this.sensorId, currTemp);
             }
         }
+
+        // Add this sensor's recorded temperature to its own slot for this min/sec in the shared memory space,
+        // and update the report for this hour with it if the report engine is building the reports
+        this.tempReadings.record(this.sensorId, currTemp);
+        if (this.reportEngine != null) {
+            this.reportEngine.record(this.sensorId, this.currReading, currTemp);
+        }
+        this.currReading++;
     }
 
     // Generates a unique random temperature for the inclusive range of temperatures specified
     private int recordTemp() {
         return ThreadLocalRandom.current().nextInt(MAX_TEMP - MIN_TEMP + 1) + MIN_TEMP;
     }
-}
\ No newline at end of file
+}
+
+// Append-only log that persists every reading as one memory-mapped segment file per hour. Every segment has a fixed size header
+// followed by one region per sensor holding a byte for each minute/second of the hour, so a reading's position in its segment is
+// known without any index. Each region is padded to a whole cache line (and mappings start on a page), so a sensor only ever writes
+// to its own cache line and sensors writing the same minute never contend over a line. The byte is the temperature's offset from the lowest possible temperature
+// plus 1, so a reading that was never written (the program stopped in the middle of the hour) is a 0.
+// Sensors each get their own view of the mapped segment and write their readings straight into the mapped memory, so writing a
+// reading never makes a syscall. Only mapping a new hour's segment does, which every sensor does once an hour.
+class ReadingLog {
+    public static final int MAGIC_NUMBER = 0x54454D50;
+    public static final int VERSION = 3;
+
+    // The header is the magic number, version, number of sensors, length of the reports' intervals in minutes, and the hour
+    public static final int HEADER_BYTES = 4 * Integer.BYTES + Long.BYTES;
+
+    // Size of a cache line, which both the header and every sensor's region are padded to
+    public static final int CACHE_LINE_BYTES = 64;
+
+    private final Path directory;
+    private final int numSensors;
+
+    // Length of the intervals the hourly reports were built with, so that replaying the log builds the same reports
+    private final int intervalMinutes;
+
+    // Segments that are mapped and still being written to, by hour
+    private final Map<Long, MappedByteBuffer> segments;
+
+    // First error that came up while mapping or flushing a segment, which is thrown by close()
+    private IOException writeError;
+
+    public ReadingLog(final Path directory, final int numSensors, final int intervalMinutes) throws IOException {
+        this.directory = directory;
+        this.numSensors = numSensors;
+        this.intervalMinutes = intervalMinutes;
+        this.segments = new HashMap<>();
+
+        Files.createDirectories(directory);
+    }
+
+    public static Path getSegmentPath(final Path directory, final long hour) {
+        return directory.resolve(String.format("readings-%08d.seg", hour));
+    }
+
+    public static int getSegmentBytes(final int numSensors) {
+        return CACHE_LINE_BYTES + numSensors * CACHE_LINE_BYTES;
+    }
+
+    // Returns the position of a reading in its segment, in the sensor's own region after the padded header
+    public static int getOffset(final int minuteOfHour, final int sensor) {
+        return CACHE_LINE_BYTES + sensor * CACHE_LINE_BYTES + minuteOfHour;
+    }
+
+    // Returns a view of the hour's segment for one sensor to write its readings into, creating and mapping the segment if this is
+    // the first sensor to get to the hour. Returns null if the segment could not be mapped, in which case the error is kept for close()
+    public synchronized ByteBuffer openSegment(final long hour) {
+        MappedByteBuffer segment = this.segments.get(hour);
+
+        if (segment == null) {
+            int segmentBytes = getSegmentBytes(this.numSensors);
+
+            // The mapping stays valid after the channel is closed
+            try (FileChannel channel = FileChannel.open(getSegmentPath(this.directory, hour), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            }
+            catch (IOException e) {
+                if (this.writeError == null) {
+                    this.writeError = e;
+                }
+                return null;
+            }
+
+            segment.putInt(0, MAGIC_NUMBER);
+            segment.putInt(Integer.BYTES, VERSION);
+            segment.putInt(2 * Integer.BYTES, this.numSensors);
+            segment.putInt(3 * Integer.BYTES, this.intervalMinutes);
+            segment.putLong(4 * Integer.BYTES, hour);
+            this.segments.put(hour, segment);
+        }
+
+        // Every sensor gets its own view, since it shares the memory without sharing a position
+        return segment.duplicate();
+    }
+
+    public void write(final ByteBuffer segment, final int minuteOfHour, final int sensor, final int temp) {
+        segment.put(getOffset(minuteOfHour, sensor), (byte) (temp - Sensor.MIN_TEMP + 1));
+    }
+
+    // Flushes a finished hour's segment to disk and stops tracking it. Must only be called once every reading of the hour is written
+    public synchronized void finishHour(final long hour) {
+        MappedByteBuffer segment = this.segments.remove(hour);
+        if (segment != null) {
+            segment.force();
+        }
+    }
+
+    // Flushes any segments that were not finished, then throws the first error that came up while writing the log
+    public synchronized void close() throws IOException {
+        for (MappedByteBuffer segment : this.segments.values()) {
+            segment.force();
+        }
+        this.segments.clear();
+
+        if (this.writeError != null) {
+            throw this.writeError;
+        }
+    }
+}
+
+// Drives the sensors, deciding when each of them takes its next reading
+interface SamplingScheduler {
+    // Starts the sensors taking their readings, without waiting for them
+    void start();
+
+    // Waits until every sensor has recorded all of its readings
+    void awaitFinished() throws InterruptedException;
+}
+
+// Gives each sensor its own thread, which sleeps for a real minute/second between readings
+class RealTimeScheduler implements SamplingScheduler {
+    private final Thread[] sensorThreads;
+
+    public RealTimeScheduler(final Sensor[] sensors, final long samplingPeriodMillis) {
+        this.sensorThreads = new Thread[sensors.length];
+        for (int i = 0; i < sensors.length; i++) {
+            Sensor sensor = sensors[i];
+            this.sensorThreads[i] = new Thread(() -> {
+                // Iterate through each min/sec of the hours/minutes
+                while (!sensor.isFinished()) {
+                    sensor.recordReading();
+
+                    // Wait for a minute/second until sensor is ready to take another reading
+                    try {
+                        Thread.sleep(samplingPeriodMillis);
+                    }
+                    catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
+    }
+
+    @Override
+    public void start() {
+        for (Thread sensorThread : this.sensorThreads) {
+            sensorThread.start();
+        }
+    }
+
+    @Override
+    public void awaitFinished() throws InterruptedException {
+        for (Thread sensorThread : this.sensorThreads) {
+            sensorThread.join();
+        }
+    }
+}
+
+// Drives the sensors in virtual time with a discrete-event loop, so a sensor never sleeps and its next reading is taken as soon as
+// the readings due before it have been taken. The sensors are split between a few threads, and each thread keeps its own virtual
+// clock and a queue of the sensors' next readings ordered by when they are due, which it keeps taking the earliest one from.
+// Threads only drift apart as far as the shared buffer lets a sensor get ahead of the reports, so none of them needs a shared clock
+class VirtualTimeScheduler implements SamplingScheduler {
+    // A sensor's next reading and the virtual time in milliseconds that it is due at
+    private static class SamplingEvent {
+        private final Sensor sensor;
+        private long dueTime;
+
+        private SamplingEvent(final Sensor sensor, final long dueTime) {
+            this.sensor = sensor;
+            this.dueTime = dueTime;
+        }
+    }
+
+    // Readings that are due at the same time are taken in order of sensor
+    private static final Comparator<SamplingEvent> EVENT_ORDER =
+        Comparator.<SamplingEvent>comparingLong(event -> event.dueTime).thenComparingInt(event -> event.sensor.getSensorId());
+
+    private final Thread[] schedulerThreads;
+
+    public VirtualTimeScheduler(final Sensor[] sensors, final long samplingPeriodMillis, final int numThreads) {
+        this.schedulerThreads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            // Every thread takes every numThreads'th sensor, with all of their first readings due at the start of virtual time
+            PriorityQueue<SamplingEvent> events = new PriorityQueue<>(EVENT_ORDER);
+            for (int j = i; j < sensors.length; j += numThreads) {
+                events.add(new SamplingEvent(sensors[j], 0));
+            }
+
+            this.schedulerThreads[i] = new Thread(() -> runEvents(events, samplingPeriodMillis));
+        }
+    }
+
+    private static void runEvents(final PriorityQueue<SamplingEvent> events, final long samplingPeriodMillis) {
+        long virtualTime = 0;
+
+        while (!events.isEmpty()) {
+            // Jump the clock straight to the next reading that is due instead of sleeping until then
+            SamplingEvent event = events.poll();
+            virtualTime = event.dueTime;
+            event.sensor.recordReading();
+
+            // Schedule the sensor's next reading one sampling period later, reusing its event
+            if (!event.sensor.isFinished()) {
+                event.dueTime = virtualTime + samplingPeriodMillis;
+                events.add(event);
+            }
+        }
+    }
+
+    @Override
+    public void start() {
+        for (Thread schedulerThread : this.schedulerThreads) {
+            schedulerThread.start();
+        }
+    }
+
+    @Override
+    public void awaitFinished() throws InterruptedException {
+        for (Thread schedulerThread : this.schedulerThreads) {
+            schedulerThread.join();
+        }
+    }
+}
+
+// Rebuilds the hourly reports from the segments of a reading log, by reading every temperature straight out of the mapped segment
+// (without copying it anywhere or parsing anything) and feeding it into a report engine just like the sensors did.
+// Usage: java ReadingLogReplay <log directory> [hour]
+// Hours are numbered from 1 like the reports that TemperatureReadings prints. Without an hour, every segment in the directory is replayed
+class ReadingLogReplay {
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: java ReadingLogReplay <log directory> [hour]");
+            return;
+        }
+
+        Path directory = Paths.get(args[0]);
+
+        try {
+            if (args.length > 1) {
+                replayHour(directory, Long.parseLong(args[1]) - 1);
+            }
+            else {
+                // Segment names are zero padded, so sorting them by name sorts them by hour
+                File[] segmentFiles = directory.toFile().listFiles((dir, name) -> name.startsWith("readings-") && name.endsWith(".seg"));
+                if (segmentFiles == null || segmentFiles.length == 0) {
+                    System.out.println("No segments found in " + directory);
+                    return;
+                }
+                Arrays.sort(segmentFiles);
+
+                for (File segmentFile : segmentFiles) {
+                    String name = segmentFile.getName();
+                    replayHour(directory, Long.parseLong(name.substring("readings-".length(), name.length() - ".seg".length())));
+                }
+            }
+        }
+        catch (IOException | InterruptedException e) {
+            System.out.println("Error replaying reading log " + directory + ": " + e.toString());
+        }
+    }
+
+    // Prints the report for one hour of the log
+    private static void replayHour(final Path directory, final long hour) throws IOException, InterruptedException {
+        Path segmentPath = ReadingLog.getSegmentPath(directory, hour);
+        MappedByteBuffer segment;
+
+        try (FileChannel channel = FileChannel.open(segmentPath, StandardOpenOption.READ)) {
+            if (channel.size() < ReadingLog.HEADER_BYTES) {
+                throw new IOException(segmentPath + " is not a reading log segment");
+            }
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (segment.getInt(0) != ReadingLog.MAGIC_NUMBER) {
+            throw new IOException(segmentPath + " is not a reading log segment");
+        }
+        if (segment.getInt(Integer.BYTES) != ReadingLog.VERSION) {
+            throw new IOException(segmentPath + " has an unsupported version");
+        }
+
+        int numSensors = segment.getInt(2 * Integer.BYTES);
+        int intervalMinutes = segment.getInt(3 * Integer.BYTES);
+        if (segment.getLong(4 * Integer.BYTES) != hour || segment.capacity() != ReadingLog.getSegmentBytes(numSensors)
+                || intervalMinutes < 1 || intervalMinutes > 60) {
+            throw new IOException(segmentPath + " is corrupted");
+        }
+
+        // The engine only needs to hold the one hour, and gets the readings in the same order the sensors recorded them. It uses
+        // the interval length the log was recorded with, so that it builds the same report that was printed then
+        ReportEngine reportEngine = new ReportEngine(numSensors, 1, intervalMinutes, null);
+        int numMissing = 0;
+
+        for (int minute = 0; minute < 60; minute++) {
+            for (int sensor = 0; sensor < numSensors; sensor++) {
+                int reading = segment.get(ReadingLog.getOffset(minute, sensor)) & 0xFF;
+
+                if (reading == 0) {
+                    numMissing++;
+                }
+                else {
+                    reportEngine.record(sensor, hour * 60 + minute, reading - 1 + Sensor.MIN_TEMP);
+                }
+            }
+        }
+
+        System.out.println("Report for hour " + (hour + 1) + ":");
+        if (numMissing > 0) {
+            System.out.println("Segment is missing " + numMissing + " readings, so the hour was never finished");
+            return;
+        }
+        reportEngine.takeReport().print();
+    }
+}